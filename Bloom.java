@@ -0,0 +1,174 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.DataInput;
+import java.io.DataOutput;
+
+// hadoop classes
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+
+/** Class provides a Bloom filter of key Tuples.  The filter answers
+ *  whether a key might be in the set it was built from, never
+ *  answering no for a key that is.  The filter is built by the job
+ *  runner and passed to the map tasks over the distributed cache.
+ */
+class Bloom
+  implements Writable
+{
+  /* private fields */
+
+  /** The bits of the filter */
+  private long[] bits;
+  /** The number of bits set for each key */
+  private int hashes;
+  /** Buffer used to serialize the keys */
+  private DataOutputBuffer out = new DataOutputBuffer();
+
+  /* constructors */
+
+  /** Create an empty filter, to be filled by readFields.
+   *  @return The new object
+   */
+  public Bloom ()
+  {
+    bits = new long[1];
+    hashes = 1;
+  }
+
+  /** Create a filter sized for the number of keys and the rate of
+   *  false positives.
+   *  @param keys    The expected number of keys
+   *  @param error   The acceptable rate of false positives
+   *  @return        The new object
+   */
+  public Bloom (long keys, double error)
+  {
+    keys = Math.max(keys, 1);
+    double ln2 = Math.log(2);
+    long m = (long) Math.ceil(-keys * Math.log(error) / (ln2 * ln2));
+    m = Math.min(Math.max(m, 64), 64L * Integer.MAX_VALUE);
+    bits = new long[(int) ((m + 63) / 64)];
+    hashes = (int) Math.max(1, Math.round((double) m / keys * ln2));
+  }
+
+  /* public static methods */
+
+  /** Read the filter passed over the distributed cache under the name.
+   *  @param conf    The Hadoop configuration
+   *  @param name    The name of the cached file
+   *  @return        The filter
+   */
+  public static Bloom load (Configuration conf, String name)
+    throws IOException
+  {
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path path = Script.findCache(conf, name);
+    if (path == null) path = new Path(Eggshell.SCRIPT_DIR + "/" + name);
+    FSDataInputStream in = fs.open(path);
+    Bloom bloom = new Bloom();
+    bloom.readFields(in);
+    in.close();
+    return bloom;
+  }
+
+  /* public methods */
+
+  /** Add a key to the filter.
+   *  @param key     The key
+   */
+  public void add (Tuple key)
+    throws IOException
+  {
+    long h = hash(key);
+    int h1 = (int) h, h2 = (int) (h >>> 32);
+    long m = 64L * bits.length;
+    for (int i = 0; i < hashes; i++) {
+      long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % m;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /** Check whether the key might have been added to the filter.
+   *  @param key     The key
+   *  @return        False if the key was surely never added
+   */
+  public boolean contains (Tuple key)
+    throws IOException
+  {
+    long h = hash(key);
+    int h1 = (int) h, h2 = (int) (h >>> 32);
+    long m = 64L * bits.length;
+    for (int i = 0; i < hashes; i++) {
+      long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % m;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+    }
+    return true;
+  }
+
+  /** Implements the serialization method.
+   *  @param out    The output data stream
+   */
+  @Override
+  public void write (DataOutput out)
+    throws IOException
+  {
+    out.writeInt(hashes);
+    out.writeInt(bits.length);
+    for (long word : bits) out.writeLong(word);
+  }
+
+  /** Implements the deserialization method.
+   *  @param in    The input data stream
+   */
+  @Override
+  public void readFields (DataInput in)
+    throws IOException
+  {
+    hashes = in.readInt();
+    bits = new long[in.readInt()];
+    for (int i = 0; i < bits.length; i++) bits[i] = in.readLong();
+  }
+
+  /* private methods */
+
+  /** Hash the serialized key with 64-bit FNV-1a.  The two halves of
+   *  the hash are combined to derive the bits set for the key.
+   *  @param key     The key
+   *  @return        The hash
+   */
+  private long hash (Tuple key)
+    throws IOException
+  {
+    out.reset();
+    key.write(out);
+    byte[] b = out.getData();
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < out.getLength(); i++) h = (h ^ b[i]) * 0x100000001b3L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,228 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.UniqueTag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// hadoop classes
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+
+/** Class passes Javascript values from the job runner to the tasks.
+ *  A value made of objects, arrays, strings, numbers, booleans and
+ *  nulls is encoded into a compact binary file, which is sent over
+ *  the distributed cache.  Numbers holding integers are written as
+ *  variable length integers and the others as doubles.  The file is
+ *  decoded once per JVM, into Java arrays and maps shared by the
+ *  tasks it runs, and each task converts the decoded value to
+ *  Javascript the first time its global scope is asked for it.
+ */
+class Broadcast
+{
+  /* private static fields */
+
+  /** Identifies the file format */
+  private static final int MAGIC = 0x45474231;
+  /** The tags of the types of value */
+  private static final byte NULL = 0;
+  private static final byte DOUBLE = 1;
+  private static final byte STRING = 2;
+  private static final byte INTEGER = 3;
+  private static final byte ARRAY = 4;
+  private static final byte OBJECT = 5;
+  private static final byte TRUE = 6;
+  private static final byte FALSE = 7;
+  /** The largest integer a double holds exactly */
+  private static final double EXACT = 9007199254740992.0;
+  /** The values already decoded by this JVM, by local path, length
+      and modification time */
+  private static HashMap<String, Object> decoded = new HashMap<String, Object>();
+
+  /* public static methods */
+
+  /** Encode a Javascript value.
+   *  @param stream        The stream to write to
+   *  @param o             The value
+   *  @throws IOException  The value holds a function or a Java object
+   */
+  public static void write (OutputStream stream, Object o)
+    throws IOException
+  {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeInt(MAGIC);
+    encode(out, o);
+    out.flush();
+  }
+
+  /** Decode the value of a file passed over the distributed cache,
+   *  or of the script directory when running in standalone mode.
+   *  The value is decoded the first time it is asked for and then
+   *  shared by all later tasks run by the JVM.
+   *  @param conf          The Hadoop configuration
+   *  @param name          The name of the cached file
+   *  @return              The value as Java objects
+   */
+  public static synchronized Object read (Configuration conf, String name)
+    throws IOException
+  {
+    LocalFileSystem fs = FileSystem.getLocal(conf);
+    Path path = Script.findCache(conf, name);
+    if (path == null) path = new Path(Eggshell.SCRIPT_DIR + "/" + name);
+    File file = fs.pathToFile(path).getCanonicalFile();
+    String id = file.getPath() + " " + file.length() + " " + file.lastModified();
+    if (decoded.containsKey(id)) return decoded.get(id);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) throw new IOException(file + " is not a broadcast value");
+      Object o = decode(in);
+      decoded.put(id, o);
+      return o;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Convert a decoded value to Javascript.
+   *  @param script  The Javascript interpreter
+   *  @param o       The decoded value
+   *  @return        The Javascript value
+   */
+  @SuppressWarnings("unchecked")
+  public static Object toJavascript (Script script, Object o)
+  {
+    if (o instanceof Object[]) {
+      Object[] array = (Object[]) o;
+      Object[] elements = new Object[array.length];
+      for (int i = 0; i < array.length; i++) elements[i] = toJavascript(script, array[i]);
+      return script.newArray(elements);
+    }
+    if (o instanceof Map) {
+      Scriptable obj = script.newObject("Object", null);
+      for (Map.Entry<String, Object> e : ((Map<String, Object>) o).entrySet())
+        obj.put(e.getKey(), obj, toJavascript(script, e.getValue()));
+      return obj;
+    }
+    return o;
+  }
+
+  /* private static methods */
+
+  /** Encode a Javascript value.
+   *  @param out     The output
+   *  @param o       The value
+   */
+  private static void encode (DataOutput out, Object o)
+    throws IOException
+  {
+    if (o instanceof NativeJavaObject) o = ((NativeJavaObject) o).unwrap();
+    if (o == null || o instanceof Undefined || o == UniqueTag.NOT_FOUND) {
+      out.writeByte(NULL);
+    } else if (o instanceof Boolean) {
+      out.writeByte((Boolean) o ? TRUE : FALSE);
+    } else if (o instanceof Number) {
+      double d = ((Number) o).doubleValue();
+      if (d == Math.rint(d) && Math.abs(d) <= EXACT && (d != 0 || 1 / d > 0)) {
+        out.writeByte(INTEGER);
+        WritableUtils.writeVLong(out, (long) d);
+      } else {
+        out.writeByte(DOUBLE);
+        out.writeDouble(d);
+      }
+    } else if (o instanceof CharSequence) {
+      out.writeByte(STRING);
+      Text.writeString(out, o.toString());
+    } else if (o instanceof Function) {
+      throw new IOException("cannot broadcast a function");
+    } else if (o instanceof NativeArray) {
+      NativeArray array = (NativeArray) o;
+      long length = array.getLength();
+      out.writeByte(ARRAY);
+      WritableUtils.writeVInt(out, (int) length);
+      for (int i = 0; i < length; i++) encode(out, array.get(i, array));
+    } else if (o instanceof ScriptableObject) {
+      ScriptableObject obj = (ScriptableObject) o;
+      Object[] ids = obj.getIds();
+      out.writeByte(OBJECT);
+      WritableUtils.writeVInt(out, ids.length);
+      for (Object id : ids) {
+        Text.writeString(out, id.toString());
+        if (id instanceof Number) encode(out, obj.get(((Number) id).intValue(), obj));
+        else encode(out, obj.get(id.toString(), obj));
+      }
+    } else {
+      throw new IOException("cannot broadcast a " + o.getClass().getName());
+    }
+  }
+
+  /** Decode a value into Java objects.  Arrays are decoded as object
+   *  arrays and objects as maps keeping the order of their keys.
+   *  @param in      The input
+   *  @return        The value
+   */
+  private static Object decode (DataInput in)
+    throws IOException
+  {
+    byte tag = in.readByte();
+    switch (tag) {
+    case NULL: return null;
+    case TRUE: return Boolean.TRUE;
+    case FALSE: return Boolean.FALSE;
+    case DOUBLE: return in.readDouble();
+    case INTEGER: return (double) WritableUtils.readVLong(in);
+    case STRING: return Text.readString(in);
+    case ARRAY:
+      Object[] array = new Object[WritableUtils.readVInt(in)];
+      for (int i = 0; i < array.length; i++) array[i] = decode(in);
+      return array;
+    case OBJECT:
+      int n = WritableUtils.readVInt(in);
+      LinkedHashMap<String, Object> obj = new LinkedHashMap<String, Object>();
+      for (int i = 0; i < n; i++) {
+        String key = Text.readString(in);
+        obj.put(key, decode(in));
+      }
+      return obj;
+    default:
+      throw new IOException("bad broadcast value tag " + tag);
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+// hadoop classes
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+
+
+/** Class estimates the cost of a job from a dry run.  The dry run
+ *  runs the job's map function, and its combiner, in Hadoop's local
+ *  job runner over the first records of each input split, with the
+ *  output thrown away by an identity reducer.  The records of each
+ *  whole split are estimated from the progress of its reader, and the
+ *  counters of the dry run are scaled up by the records of the whole
+ *  input to estimate the map output, the bytes shuffled and the time
+ *  taken by the Javascript functions of the map tasks.  The number of
+ *  reduce tasks recommended gives each of them the bytes set by the
+ *  eggshell.reduce.bytes property, 1 GB by default.
+ */
+class DryRun
+{
+  /* public fields */
+
+  /** The bytes of the input files */
+  public double inputBytes;
+  /** The records of the input */
+  public double inputRecords;
+  /** The records written by the map tasks */
+  public double mapOutputRecords;
+  /** The bytes written by the map tasks, before the combiner */
+  public double mapOutputBytes;
+  /** The bytes shuffled to the reduce tasks, after the combiner */
+  public double shuffleBytes;
+  /** Nanoseconds spent in the map tasks' functions per input record */
+  public double recordNanos;
+  /** Seconds spent in the map tasks' functions */
+  public double mapSeconds;
+  /** Nanoseconds spent in the map tasks' functions per input byte */
+  public double byteNanos;
+  /** The fraction of its input records kept by the combiner, or -1 */
+  public double combineRatio;
+  /** The keys of the map output of the dry run per record */
+  public double keyRatio;
+  /** The recommended number of reduce tasks, or 0 for a map-only job */
+  public int reducers;
+
+  /* private fields */
+
+  /** The records read by the dry run */
+  private long records;
+  /** The splits read by the dry run and of the whole input */
+  private long splits;
+  private long totalSplits;
+  /** Whether the job has a combiner */
+  private boolean combined;
+
+  /* public static methods */
+
+  /** Create the dry run of a job.  The dry run shares the job's
+   *  configuration and serialized functions.
+   *  @param job     The job
+   *  @param output  The directory for output written to named outputs
+   *  @param records The most records read from each split
+   *  @return        The dry run job
+   */
+  public static Job job (Job job, Path output, long records)
+    throws IOException
+  {
+    Configuration cf = new Configuration(job.getConfiguration());
+    cf.set("mapreduce.framework.name", "local");
+    cf.setInt(Eggshell.LOCAL_THREADS, 0);
+    cf.setBoolean(Eggshell.METRICS, true);
+    cf.setLong(Eggshell.LIMIT, 0);
+    cf.setLong(Eggshell.SAMPLE_HEAD, records);
+    Job dry = Job.getInstance(cf, job.getJobName() + " (dry run)");
+    dry.setJarByClass(DryRun.class);
+    dry.setOutputFormatClass(NullOutputFormat.class);
+    FileOutputFormat.setOutputPath(dry, output);
+    dry.setReducerClass(Reducer.class);
+    dry.setNumReduceTasks(Math.min(job.getNumReduceTasks(), 1));
+    return dry;
+  }
+
+  /* constructors */
+
+  /** Estimate the cost of a job from its dry run.
+   *  @param job     The job
+   *  @param dry     The finished dry run
+   *  @return        The new object
+   */
+  public DryRun (Job job, Job dry)
+    throws IOException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    Counters c = dry.getCounters();
+    inputBytes = SplitSize.inputBytes(job);
+    records = c.findCounter(Sample.GROUP, "READ_RECORDS").getValue();
+    splits = c.findCounter(Sample.GROUP, "SAMPLED_SPLITS").getValue();
+    totalSplits = c.findCounter(Sample.GROUP, "TOTAL_SPLITS").getValue();
+    double estimated = c.findCounter(Sample.GROUP, "ESTIMATED_RECORDS").getValue();
+    inputRecords = (splits > 0) ? estimated * totalSplits / splits : 0;
+    double scale = (records > 0) ? inputRecords / records : 0;
+
+    double mapInput = c.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue();
+    double mapOutput = c.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue();
+    mapOutputRecords = mapOutput * scale;
+    mapOutputBytes = c.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue() * scale;
+    shuffleBytes = c.findCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES).getValue() * scale;
+
+    long nanos = c.findCounter(Metrics.GROUP, "MAP_NANOS").getValue();
+    recordNanos = (mapInput > 0) ? nanos / mapInput : 0;
+    mapSeconds = nanos * scale / 1e9;
+    byteNanos = (inputBytes > 0) ? mapSeconds * 1e9 / inputBytes : 0;
+
+    double combineInput = c.findCounter(TaskCounter.COMBINE_INPUT_RECORDS).getValue();
+    double combineOutput = c.findCounter(TaskCounter.COMBINE_OUTPUT_RECORDS).getValue();
+    combined = job.getCombinerClass() != null && !job.getCombinerClass().equals(Reducer.class);
+    combineRatio = (combineInput > 0) ? combineOutput / combineInput : -1;
+    double groups = c.findCounter(TaskCounter.REDUCE_INPUT_GROUPS).getValue();
+    keyRatio = (mapOutput > 0) ? groups / mapOutput : 1;
+
+    if (job.getNumReduceTasks() > 0) {
+      long bytes = cf.getLong(Eggshell.REDUCE_BYTES, 1L << 30);
+      reducers = (int) Math.max(1, Math.ceil(shuffleBytes / Math.max(bytes, 1)));
+    }
+  }
+
+  /* public methods */
+
+  /** Print the estimates, along with advice on the combiner.
+   *  @param out     The stream to print to
+   *  @param job     The job
+   */
+  public void print (PrintStream out, Job job)
+  {
+    out.println("job " + job.getJobName() + " dry run read " + records +
+                " records of " + splits + " of " + totalSplits + " splits");
+    out.println(String.format("  input          %s, about %.0f records",
+                              size(inputBytes), inputRecords));
+    out.println(String.format("  map output     %s, about %.0f records",
+                              size(mapOutputBytes), mapOutputRecords));
+    out.println(String.format("  map functions  %.2fus per record, about %.1fs",
+                              recordNanos / 1e3, mapSeconds));
+    if (reducers == 0) return;
+    out.println(String.format("  shuffle        %s", size(shuffleBytes)));
+    if (combined && combineRatio >= 0) {
+      out.println(String.format("  combiner       keeps %.0f%% of its records%s", combineRatio * 100,
+                                combineRatio > 0.9 ? ", and may not be worth running" : ""));
+    } else if (keyRatio < 0.5) {
+      out.println(String.format("  combiner       none, one could keep about %.0f%% of the records",
+                                keyRatio * 100));
+    }
+    out.println("  reduce tasks   " + reducers + " recommended, " + job.getNumReduceTasks() + " set");
+  }
+
+  /* private static methods */
+
+  /** Format a number of bytes.
+   *  @param bytes   The bytes
+   *  @return        The bytes in the largest unit under 1024
+   */
+  private static String size (double bytes)
+  {
+    String[] units = { "B", "KB", "MB", "GB", "TB", "PB" };
+    int i = 0;
+    while (bytes >= 1024 && i < units.length - 1) {
+      bytes /= 1024;
+      i++;
+    }
+    return String.format("%.1f%s", bytes, units[i]);
+  }
+}
@@ -24,20 +24,32 @@ import org.mozilla.javascript.annotations.JSGetter;
 import org.mozilla.javascript.annotations.JSSetter;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
 
 // hadoop classes
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.Mapper;
 
 // hadoop input formats
 import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.OutputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.KeyValueTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
@@ -47,6 +59,7 @@ import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 
 /** An instance of this Javascript class representates a Hadoop
  *  Job. This object includes properties that reference the standard
@@ -63,17 +76,21 @@ public class Egg extends ScriptableObject
 
   /* public static fields */
 
-  /** Holds the javascript interpreter */
-  public static Script script;  
   /** Holds the initial Hadoop configuration object */
   public static Configuration conf;
   /** Holds the name of the script */
   public static String name;
+  /** Holds the jobs started by the job runner, in the order started */
+  public static ArrayList<Egg> started = new ArrayList<Egg>();
 
   /* private fields */
 
+  /** The Javascript interpreter that created the object */
+  private Script script = Script.current();
   /** Holds a Hadoop job object for the instance */
   private Job job;
+  /** Holds the counters of the job when run by the local engine */
+  private Counters counters;
 
   /* constructors */
 
@@ -125,6 +142,7 @@ public class Egg extends ScriptableObject
   public Egg textInputFormat ()
   {
     job.setInputFormatClass(TextInputFormat.class);
+    mapper(Payload.TextMap.class);
     return this;
   }
 
@@ -137,6 +155,7 @@ public class Egg extends ScriptableObject
   public Egg keyValueTextInputFormat ()
   {
     job.setInputFormatClass(KeyValueTextInputFormat.class);
+    mapper(Payload.TextMap.class);
     return this;
   }
 
@@ -149,7 +168,7 @@ public class Egg extends ScriptableObject
   public Egg sequenceFileInputFormat ()
   {
     job.setInputFormatClass(SequenceFileInputFormat.class);
-    job.setMapperClass(Payload.TupleMap.class);
+    mapper(Payload.TupleMap.class);
     return this;
   }
 
@@ -162,6 +181,32 @@ public class Egg extends ScriptableObject
   public Egg nLineInputFormat ()
   {
     job.setInputFormatClass(NLineInputFormat.class);
+    mapper(Payload.TextMap.class);
+    return this;
+  }
+
+  /** Defines how to read data from a file into the Mapper instances.
+   *  This method sets the input format to the 'TextInputFormat'
+   *  implementation with each line parsed as JSON in Java.  If an
+   *  array of dotted paths is given, only the values at those paths
+   *  are extracted and passed to the map function.
+   *  @param paths  The optional array of paths to extract
+   *  @return       The 'this' object
+   */
+  @JSFunction
+  public Egg jsonInputFormat (Object paths)
+  {
+    job.setInputFormatClass(TextInputFormat.class);
+    mapper(Payload.JsonMap.class);
+    if (paths instanceof NativeArray) {
+      NativeArray array = (NativeArray) paths;
+      String[] names = new String[(int) array.getLength()];
+      for (int i = 0; i < names.length; i++) 
+        names[i] = Context.toString(array.get(i, array));
+      job.getConfiguration().setStrings(Eggshell.JSON_PATHS, names);
+    } else {
+      job.getConfiguration().unset(Eggshell.JSON_PATHS);
+    }
     return this;
   }
 
@@ -261,6 +306,18 @@ public class Egg extends ScriptableObject
     return this;
   }
 
+  /** Sets the memory each value buffer of a task keeps before
+   *  spilling its values to local disk
+   *  @param megabytes   The memory in megabytes
+   *  @return            The 'this' object
+   */
+  @JSFunction
+  public Egg spillMemory (int megabytes)
+  {
+    job.getConfiguration().setLong(Eggshell.SPILL_MEMORY, (long) megabytes << 20);
+    return this;
+  }
+
   /** Turns speculative execution on or off for the map tasks
    *  @param enable      On or off
    *  @return            The 'this' object
@@ -306,16 +363,30 @@ public class Egg extends ScriptableObject
     return this;
   }
 
-  /** Sets the reducer function for the job
-   *  @param o  The javascript reduce function
-   *  @return   The 'this' object
+  /** Sets the reducer function for the job.  A reduce function
+   *  declared associative and commutative is also used as the
+   *  combiner, unless one was given, and to aggregate the output of
+   *  each mapper in memory before it is written.
+   *  @param o            The javascript reduce function
+   *  @param associative  Whether the function is associative
+   *  @return             The 'this' object
    */
   @JSFunction
-  public Egg reduce (Object o)
-    throws IOException
+  public Egg reduce (Object o, boolean associative)
+    throws IOException, ClassNotFoundException
   {
-    script.serialize(job.getConfiguration(), o, Eggshell.REDUCE_FILE);
-    job.setReducerClass(Payload.Reduce.class);
+    Configuration cf = job.getConfiguration();
+    script.serialize(cf, o, Eggshell.REDUCE_FILE);
+    cf.setBoolean(Eggshell.REDUCE_ASSOCIATIVE, associative);
+    if (associative && job.getCombinerClass().equals(Reducer.class)
+        && cf.get(Eggshell.JOIN_INPUTS) == null) {
+      cf.setBoolean(Eggshell.COMBINE_REDUCE, true);
+      job.setCombinerClass(Payload.Combine.class);
+    }
+    if (job.getConfiguration().get(Eggshell.JOIN_INPUTS) != null)
+      job.setReducerClass(Payload.JoinReduce.class);
+    else
+      job.setReducerClass(Payload.Reduce.class);
     return this;
   }
 
@@ -328,10 +399,426 @@ public class Egg extends ScriptableObject
     throws IOException
   {
     script.serialize(job.getConfiguration(), o, Eggshell.COMBINE_FILE);
+    job.getConfiguration().setBoolean(Eggshell.COMBINE_REDUCE, false);
     job.setCombinerClass(Payload.Combine.class);
     return this;
   }
 
+  /** Sets the combiner, and the reducer unless a reduce function was
+   *  given, to a Java implementation that merges the values of each
+   *  key element by element, merging sketches and summing numbers.
+   *  @return   The 'this' object
+   */
+  @JSFunction
+  public Egg merge ()
+    throws ClassNotFoundException
+  {
+    job.getConfiguration().setBoolean(Eggshell.COMBINE_REDUCE, false);
+    job.setCombinerClass(Payload.Merge.class);
+    if (job.getReducerClass().equals(Reducer.class))
+      job.setReducerClass(Payload.Merge.class);
+    return this;
+  }
+
+  /** Builds a lookup table from a local file and passes it to the
+   *  tasks over the distributed cache, where it is read with the
+   *  lookup method of the task's 'this' object.  Each line of the
+   *  file is passed to the function, which returns the key and value
+   *  like a map function does.  Without a function, each line is
+   *  split into key and value at its first tab.
+   *  @param name       The name of the table
+   *  @param file       The name of the local file
+   *  @param o          The optional javascript function
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg lookupTable (String name, String file, Object o)
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    FileSystem hdfs = FileSystem.get(cf);
+    // a fresh file each time, since a JVM may still have the last one
+    // mapped, deleted once the job is run
+    String cached = Eggshell.LOOKUP_PREFIX + name + "-" + UUID.randomUUID();
+    Path path = new Path(Eggshell.SCRIPT_DIR + "/" + cached);
+    Lookup.Writer writer = new Lookup.Writer(hdfs.create(path));
+    BufferedReader reader = new BufferedReader(
+      new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    Tuple key = new Tuple();
+    Tuple value = new Tuple();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (o instanceof Function) {
+        Object[] args = { line };
+        Object ret = script.callMapReduce((Function) o, null, args, key, value);
+        if (!(ret instanceof NativeArray)) continue;
+      } else {
+        int tab = line.indexOf('\t');
+        key.clear();
+        value.clear();
+        key.add(tab < 0 ? line : line.substring(0, tab));
+        if (tab >= 0) value.add(line.substring(tab + 1));
+      }
+      writer.add(key, value);
+    }
+    reader.close();
+    writer.close();
+    job.addCacheFile(path.toUri());
+    cf.set(Eggshell.LOOKUP_FILES + name, cached);
+    return this;
+  }
+
+  /** Declares a named output, written by the map and reduce functions
+   *  with the write method of their 'this' object alongside the job's
+   *  output.  Its files are in the job's output directory and start
+   *  with its name, which may only hold letters and digits.
+   *  @param name       The name of the output
+   *  @param format     The optional output format, "text" by default
+   *                    or "sequenceFile"
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg namedOutput (String name, Object format)
+    throws IOException
+  {
+    if ("sequenceFile".equals(format))
+      MultipleOutputs.addNamedOutput(job, name, SequenceFileOutputFormat.class, Tuple.class, Tuple.class);
+    else if (format instanceof String && !"text".equals(format))
+      throw new IOException("unknown output format " + format);
+    else MultipleOutputs.addNamedOutput(job, name, TextOutputFormat.class, Tuple.class, Tuple.class);
+    return this;
+  }
+
+  /** Sends a Javascript value to the tasks, where it is a variable of
+   *  their global scope under the given name.  The value is made of
+   *  objects, arrays, strings, numbers, booleans and nulls, and is
+   *  encoded into a binary file passed over the distributed cache.
+   *  Each task JVM decodes it once, the first time a task uses it.
+   *  @param name       The name of the variable
+   *  @param value      The value
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg broadcast (String name, Object value)
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    FileSystem hdfs = FileSystem.get(cf);
+    Path path = new Path(Eggshell.SCRIPT_DIR + "/" + Eggshell.BROADCAST_PREFIX + name);
+    FSDataOutputStream out = hdfs.create(path);
+    Broadcast.write(out, value);
+    out.close();
+    String[] names = cf.getStrings(Eggshell.BROADCAST_NAMES, new String[0]);
+    if (!Arrays.asList(names).contains(name)) {
+      job.addCacheFile(path.toUri());
+      names = Arrays.copyOf(names, names.length + 1);
+      names[names.length - 1] = name;
+      cf.setStrings(Eggshell.BROADCAST_NAMES, names);
+    }
+    return this;
+  }
+
+  /** Joins the input records with the records of a smaller input,
+   *  which is sent to every map task over the distributed cache and
+   *  held there in a hash table.  The smaller input is read as
+   *  sequence files or as tab separated text.  The map function is
+   *  called once for every matching record, with the matching value
+   *  passed as a third argument.  Records are matched on their input
+   *  key, unless a join key function is given, which is called with
+   *  the arguments of the map function and returns the key.  Records
+   *  without a match are dropped, or for an outer join passed with a
+   *  null third argument.
+   *  @param pathString  The name of the path of the smaller input
+   *  @param o           The optional javascript join key function
+   *  @param outer       Whether to perform an outer join
+   *  @return            The 'this' object
+   */
+  @JSFunction
+  public Egg broadcastJoin (String pathString, Object o, boolean outer)
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    Path path = new Path(pathString);
+    FileSystem fs = path.getFileSystem(cf);
+    Path[] files = TupleReader.list(fs, path);
+    String[] names = new String[files.length];
+    for (int i = 0; i < files.length; i++) {
+      URI uri = fs.makeQualified(files[i]).toUri();
+      job.addCacheFile(uri);
+      names[i] = uri.toString();
+    }
+    cf.setStrings(Eggshell.JOIN_FILES, names);
+    cf.setBoolean(Eggshell.JOIN_OUTER, outer);
+    if (o instanceof Function) 
+      script.serialize(cf, o, Eggshell.JOIN_KEY_FILE);
+    return this;
+  }
+
+  /** Drops the input records whose key is not among the keys of
+   *  another input, before they reach the map function.  The keys
+   *  are read, as sequence files or tab separated text, into a Bloom
+   *  filter which is sent to the map tasks over the distributed
+   *  cache.  The filter lets through a small rate of records whose
+   *  key is missing, set by the eggshell.semijoin.error property.
+   *  Records are filtered on their input key, or on the given field
+   *  of their value, or on the key returned by a join key function,
+   *  which is called with the arguments of the map function.
+   *  @param pathString  The name of the path of the keys
+   *  @param o           The optional field number or javascript
+   *                     join key function
+   *  @param separator   The optional separator of the fields of
+   *                     a text value, a tab by default
+   *  @return            The 'this' object
+   */
+  @JSFunction
+  public Egg semiJoin (String pathString, Object o, Object separator)
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    Path path = new Path(pathString);
+    FileSystem fs = path.getFileSystem(cf);
+    Path[] files = TupleReader.list(fs, path);
+    Tuple key = new Tuple();
+    Tuple value = new Tuple();
+    TupleReader reader;
+
+    long keys = 0;    // size the filter for the number of keys
+    for (Path file : files) {
+      reader = new TupleReader(fs, file, cf);
+      while (reader.next(key, value)) keys++;
+      reader.close();
+    }
+    Bloom bloom = new Bloom(keys, cf.getFloat(Eggshell.SEMIJOIN_ERROR, 0.01f));
+    for (Path file : files) {
+      reader = new TupleReader(fs, file, cf);
+      while (reader.next(key, value)) bloom.add(key);
+      reader.close();
+    }
+
+    FileSystem hdfs = FileSystem.get(cf);
+    Path bloomPath = new Path(Eggshell.SCRIPT_DIR + "/" + Eggshell.BLOOM_FILE);
+    FSDataOutputStream out = hdfs.create(bloomPath);
+    bloom.write(out);
+    out.close();
+    job.addCacheFile(bloomPath.toUri());
+
+    cf.setInt(Eggshell.SEMIJOIN_FIELD, 
+              o instanceof Number ? ((Number) o).intValue() : -1);
+    if (separator instanceof String) 
+      cf.set(Eggshell.SEMIJOIN_SEPARATOR, (String) separator);
+    if (o instanceof Function) 
+      script.serialize(cf, o, Eggshell.JOIN_KEY_FILE);
+    return this;
+  }
+
+  /** Adds an input to a reduce-side join, along with the map function
+   *  for the input.  The keys written by each input's map function
+   *  are tagged with the position of the input, so that the reduce
+   *  function is called with the key followed by the values of each
+   *  input in the order declared.  The values of all but the last
+   *  input are passed as buffers, while the values of the last input
+   *  are streamed through an iterator, so the largest input should be
+   *  added last.  All inputs are read with the job's
+   *  input format.
+   *  @param pathString  The name of the path
+   *  @param o           The javascript map function for the input
+   *  @return            The 'this' object
+   */
+  @JSFunction
+  public Egg joinInput (String pathString, Object o)
+    throws IOException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    Path path = new Path(pathString);
+    path = path.getFileSystem(cf).makeQualified(path);
+    String[] inputs = cf.getStrings(Eggshell.JOIN_INPUTS, new String[0]);
+    script.serialize(cf, o, "map" + inputs.length + ".js");
+    String[] names = Arrays.copyOf(inputs, inputs.length + 1);
+    names[inputs.length] = path.toString();
+    cf.setStrings(Eggshell.JOIN_INPUTS, names);
+    FileInputFormat.addInputPath(job, path);
+    job.setMapperClass(Payload.JoinMap.class);
+    job.setPartitionerClass(Payload.JoinPartitioner.class);
+    job.setGroupingComparatorClass(Payload.JoinComparator.class);
+    if (job.getReducerClass() == Payload.Reduce.class)
+      job.setReducerClass(Payload.JoinReduce.class);
+    return this;
+  }
+
+  /** Turns on skew mode, declaring the reduce function associative
+   *  and commutative so a key's values can be reduced in parts.  The
+   *  mappers count a sample of their output keys, and the records of
+   *  any key making up more than the fraction of a mapper's output
+   *  are split over several salted keys and so several reducers.  A
+   *  second job then merges the partial results of each hot key with
+   *  the same reduce function.  The hottest keys split are reported in
+   *  the _hotkeys.txt file of the output directory.
+   *  @param salts      The number of ways to split a hot key, 8 by default
+   *  @param fraction   The share of output making a key hot, 0.01 by default
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg skew (int salts, double fraction)
+  {
+    Configuration cf = job.getConfiguration();
+    cf.setInt(Eggshell.SKEW_SALTS, salts > 1 ? salts : 8);
+    if (fraction > 0 && fraction < 1) 
+      cf.setFloat(Eggshell.SKEW_FRACTION, (float) fraction);
+    return this;
+  }
+
+  /** Turns on profiling of the job's Javascript functions.  Each task
+   *  samples the function and line it is running at the interval, and
+   *  the samples of all of the tasks are written to the _profile.txt
+   *  file of the output directory once the job succeeds.  Functions
+   *  are interpreted while profiling, so they run slower.
+   *  @param interval   The sampling interval in milliseconds, 10 by default
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg profile (int interval)
+  {
+    job.getConfiguration().setInt(Eggshell.PROFILE_INTERVAL, interval > 0 ? interval : 10);
+    return this;
+  }
+
+  /** Reuses the output of an earlier run of the job when nothing it
+   *  depends on has changed, instead of running it again.  The job is
+   *  fingerprinted by its configuration, serialized functions and
+   *  lookup tables, and the path, length and modification time of its
+   *  input files, and the fingerprint is kept in its output directory.
+   *  An output left by an earlier run with a different fingerprint is
+   *  deleted and the job run again.
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg cache ()
+  {
+    job.getConfiguration().setBoolean(Eggshell.CACHE, true);
+    return this;
+  }
+
+  /** Turns on incremental mode, where each run of the job processes
+   *  only the input files that are new since the last run.  The
+   *  results of the new files are merged with those of the earlier
+   *  runs by the reduce function, which must be associative and
+   *  commutative.  The files processed are listed in the output
+   *  directory, along with the results kept as sequence files.  If a
+   *  file processed before has changed, all the input is processed
+   *  again.
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg incremental ()
+  {
+    job.getConfiguration().setBoolean(Eggshell.INCREMENTAL, true);
+    return this;
+  }
+
+  /** Runs the job on a fraction of its input splits, for a fast
+   *  approximate run.  The splits are chosen by a shuffle seeded by
+   *  the seed, so a run can be repeated on the same sample.  At least
+   *  one split is kept.
+   *  @param fraction   The fraction of the splits read
+   *  @param seed       The seed of the sample, 0 by default
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg sampleSplits (double fraction, Object seed)
+  {
+    Configuration cf = job.getConfiguration();
+    cf.setFloat(Eggshell.SAMPLE_SPLITS, (float) fraction);
+    if (seed instanceof Number) cf.setLong(Eggshell.SAMPLE_SEED, ((Number) seed).longValue());
+    return this;
+  }
+
+  /** Runs the job on a fraction of its input records, for a fast
+   *  approximate run.  Each split's records are chosen by a random
+   *  generator seeded by the seed and the split, so a run can be
+   *  repeated on the same sample.  The rate sampled is reported in the
+   *  "Eggshell Sampling" counter group and by the sampleRate property.
+   *  @param fraction   The fraction of the records read
+   *  @param seed       The seed of the sample, 0 by default
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg sample (double fraction, Object seed)
+  {
+    Configuration cf = job.getConfiguration();
+    cf.setFloat(Eggshell.SAMPLE_RECORDS, (float) fraction);
+    if (seed instanceof Number) cf.setLong(Eggshell.SAMPLE_SEED, ((Number) seed).longValue());
+    return this;
+  }
+
+  /** Limits the output of the job to about a number of records.  Each
+   *  map task stops reading its input once it has written its share
+   *  of the limit, as counted by Hadoop, so map output held back for
+   *  in-mapper aggregation is counted only when flushed.  Each reduce
+   *  task stops once it has written its share, so the job writes at
+   *  most the limit.  Tasks stopped early are counted under
+   *  LIMITED_TASKS in the "Eggshell Sampling" counter group.
+   *  @param records    The most records written
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg limit (double records)
+  {
+    job.getConfiguration().setLong(Eggshell.LIMIT, (long) records);
+    return this;
+  }
+
+  /** Sizes the input splits so that each map task takes about a
+   *  number of seconds, by the time the map function takes per byte
+   *  of input.  The cost is either given, in nanoseconds per byte,
+   *  or taken from another Egg object that has run, or measured by an
+   *  earlier dryRun() of this job, or kept in the output directory by
+   *  an earlier run of the job, or else measured by a dry run.
+   *  @param seconds    The seconds a map task should take
+   *  @param cost       The nanoseconds per byte or the Egg object
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg taskSeconds (double seconds, Object cost)
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    cf.setFloat(Eggshell.TASK_SECONDS, (float) seconds);
+    if (cost instanceof Egg) cost = ((Egg) cost).getByteNanos();
+    if (cost instanceof Number && ((Number) cost).doubleValue() > 0)
+      cf.setDouble(Eggshell.BYTE_NANOS, ((Number) cost).doubleValue());
+    return this;
+  }
+
+  /** Turns on pipelined mode, where the map tasks read and decode
+   *  their records on a helper thread and the map and reduce tasks
+   *  write their results on another, leaving the task's thread to run
+   *  the Javascript functions.  The threads pass records to each other
+   *  in batches over bounded queues.  Joins read their input on the
+   *  task's thread.
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg pipeline ()
+  {
+    job.getConfiguration().setBoolean(Eggshell.PIPELINE, true);
+    return this;
+  }
+
+  /** Runs the job inside this JVM instead of submitting it to Hadoop.
+   *  The map and reduce tasks run on a pool of threads and the map
+   *  output is sorted and shuffled in memory, so the job must fit in
+   *  the memory of one machine.
+   *  @param threads    The number of threads, one per processor by default
+   *  @return           The 'this' object
+   */
+  @JSFunction
+  public Egg local (int threads)
+  {
+    if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+    job.getConfiguration().setInt(Eggshell.LOCAL_THREADS, threads);
+    return this;
+  }
+
   /* non-chainable public methods */
 
   /** Kill the running job
@@ -349,6 +836,13 @@ public class Egg extends ScriptableObject
   public void submit ()
     throws IOException, InterruptedException, ClassNotFoundException
   {
+    if (job.getConfiguration().getInt(Eggshell.SKEW_SALTS, 0) > 0)
+      throw new IOException("a job in skew mode must use waitForCompletion");
+    if (job.getConfiguration().getInt(Eggshell.LOCAL_THREADS, 0) > 0)
+      throw new IOException("a local job must use waitForCompletion");
+    sampleInput(job);
+    sizeSplits(FileOutputFormat.getOutputPath(job));
+    started.add(this);
     job.submit();
   }
 
@@ -360,7 +854,156 @@ public class Egg extends ScriptableObject
   public boolean waitForCompletion (boolean verbose)
     throws IOException, InterruptedException, ClassNotFoundException
   {
-    return job.waitForCompletion(verbose);
+    try {
+      return complete(verbose);
+    } finally {
+      deleteLookups();
+    }
+  }
+
+  /** Run the job round after round, each round reading the output of
+   *  the round before as sequence files, until it converges or the
+   *  maximum number of rounds is reached.  The rounds share the job's
+   *  configuration and serialized functions, which are not written
+   *  again.  Convergence is decided after each round by a function,
+   *  called with the number of the round and with this object, whose
+   *  job and counters are those of the round, as 'this', returning
+   *  true once converged.  Or it is decided by a counter of the
+   *  tasks, the job converging once the counter is zero.  The output
+   *  of the last round is written in the job's output format.  The
+   *  end of each round is printed.  Afterwards this object's job is
+   *  the original again, with the counters of the last round.
+   *  @param rounds   The maximum number of rounds
+   *  @param o        The javascript convergence function, or the
+   *                  group of the counter
+   *  @param name     The name of the counter
+   *  @return         The number of rounds run, or 0 if a round failed
+   */
+  @JSFunction
+  public int iterate (int rounds, Object o, Object name)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    if (cf.getInt(Eggshell.SKEW_SALTS, 0) > 0 || cf.getBoolean(Eggshell.INCREMENTAL, false))
+      throw new IOException("an iterated job cannot be in skew or incremental mode");
+    if (cf.get(Eggshell.JOIN_INPUTS) != null)
+      throw new IOException("an iterated job does not support reduce-side joins");
+    Path output = FileOutputFormat.getOutputPath(job);
+    if (output == null) throw new IOException("an iterated job needs an output path");
+    FileSystem fs = output.getFileSystem(cf);
+    if (fs.exists(output))
+      throw new IOException("Output directory " + output + " already exists");
+    Class<? extends OutputFormat<?, ?>> format = job.getOutputFormatClass();
+    Path[] inputs = FileInputFormat.getInputPaths(job);
+    Path temp = new Path(Eggshell.SCRIPT_DIR + "/iterate-" + System.currentTimeMillis());
+    temp = fs.makeQualified(temp);
+    String jobName = job.getJobName();
+    Path previous = null;
+    sampleInput(job);
+    sizeSplits(null);
+    started.add(this);
+
+    Job original = job;
+    Counters last = null;
+    int round = 0;
+    try {
+      while (round < Math.max(rounds, 1)) {
+        round++;
+        Path path = new Path(temp, "round-" + round);
+        Job next = Job.getInstance(new Configuration(cf), jobName + " (round " + round + ")");
+        next.setJarByClass(this.getClass());
+        if (previous == null) FileInputFormat.setInputPaths(next, inputs);
+        else {
+          FileInputFormat.setInputPaths(next, previous);
+          next.setInputFormatClass(SequenceFileInputFormat.class);
+          next.setMapperClass(Payload.TupleMap.class);
+        }
+        next.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setOutputPath(next, path);
+        job = next;
+        counters = null;
+        if (!run(job, false)) {
+          fs.delete(temp, true);
+          return 0;
+        }
+        if (previous != null) fs.delete(previous, true);
+        previous = path;
+        last = getCounters();
+
+        boolean converged = false;
+        if (o instanceof Function) {
+          Object ret = script.callFunction((Function) o, this, new Object[]{ (double) round });
+          converged = ret != null && Context.toBoolean(ret);
+        } else if (o instanceof String) {
+          converged = getCounters().findCounter((String) o, Context.toString(name)).getValue() == 0;
+        }
+        System.err.println("job " + jobName + " finished round " + round +
+                           (converged ? ", converged" : ""));
+        if (converged) break;
+      }
+
+      /* write the output of the last round */
+      boolean success = true;
+      fs.mkdirs(output.getParent());
+      if (format.equals(SequenceFileOutputFormat.class)) {
+        if (!fs.rename(previous, output))
+          throw new IOException("could not move " + previous + " to " + output);
+      } else {
+        Job write = merge(" (output)", output, previous);
+        write.setNumReduceTasks(0);
+        write.setOutputFormatClass(format);
+        success = run(write, false);
+      }
+      fs.delete(temp, true);
+      return success ? round : 0;
+    } finally {
+      job = original;
+      counters = last;
+      deleteLookups();
+    }
+  }
+
+  /** Estimate the cost of the job from a dry run in Hadoop's local
+   *  job runner, over the first records of each input split.  The
+   *  input size, map output, bytes shuffled, time taken by the map
+   *  tasks' functions and the reduce tasks recommended are printed,
+   *  with advice on the combiner, and returned as an object.  The
+   *  recommended number of reduce tasks can be set on the job.
+   *  @param records  The records read from each split, 1000 by default
+   *  @param apply    Whether to set the recommended reduce tasks
+   *  @return         The estimates
+   */
+  @JSFunction
+  public Scriptable dryRun (Object records, boolean apply)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    long n = (records instanceof Number) ? ((Number) records).longValue() : 1000;
+    FileSystem fs = FileSystem.get(cf);
+    Path temp = fs.makeQualified(new Path(Eggshell.SCRIPT_DIR + "/dryrun-" + System.currentTimeMillis()));
+    Job dry = DryRun.job(job, temp, Math.max(n, 1));
+    sampleInput(dry);
+    boolean success = dry.waitForCompletion(false);
+    fs.delete(temp, true);
+    if (!success) throw new IOException("the dry run of job " + job.getJobName() + " failed");
+    DryRun estimate = new DryRun(job, dry);
+    estimate.print(System.err, job);
+    if (apply && estimate.reducers > 0) job.setNumReduceTasks(estimate.reducers);
+    if (estimate.byteNanos > 0) cf.setDouble(Eggshell.BYTE_NANOS, estimate.byteNanos);
+
+    Scriptable obj = script.newObject("Object", null);
+    obj.put("inputBytes", obj, estimate.inputBytes);
+    obj.put("inputRecords", obj, estimate.inputRecords);
+    obj.put("mapOutputRecords", obj, estimate.mapOutputRecords);
+    obj.put("mapOutputBytes", obj, estimate.mapOutputBytes);
+    obj.put("shuffleBytes", obj, estimate.shuffleBytes);
+    obj.put("recordNanos", obj, estimate.recordNanos);
+    obj.put("mapSeconds", obj, estimate.mapSeconds);
+    obj.put("byteNanos", obj, estimate.byteNanos);
+    obj.put("combineRatio", obj, estimate.combineRatio);
+    obj.put("keyRatio", obj, estimate.keyRatio);
+    obj.put("reducers", obj, (double) estimate.reducers);
+    return obj;
   }
 
   /** Get the user specified job name
@@ -383,6 +1026,46 @@ public class Egg extends ScriptableObject
     return job;
   }
 
+  /** Get the counters of the job, including those of a job run by the
+   *  local engine
+   *  @return The counters
+   */
+  @JSGetter
+  public Counters getCounters ()
+    throws IOException
+  {
+    return (counters != null) ? counters : job.getCounters();
+  }
+
+  /** Get the fraction of the input the job read, from the "Eggshell
+   *  Sampling" counters, for scaling up the totals of a sampled run.
+   *  The fraction is 1 for a job that read all of its input, and is
+   *  only an estimate if tasks were stopped early by a limit.
+   *  @return The fraction of the input read
+   */
+  @JSGetter
+  public Double getSampleRate ()
+    throws IOException
+  {
+    Counters c = getCounters();
+    double total = c.findCounter(Sample.GROUP, "TOTAL_SPLITS").getValue();
+    double splits = c.findCounter(Sample.GROUP, "SAMPLED_SPLITS").getValue();
+    double read = c.findCounter(Sample.GROUP, "READ_RECORDS").getValue();
+    double sampled = c.findCounter(Sample.GROUP, "SAMPLED_RECORDS").getValue();
+    return (total > 0 ? splits / total : 1) * (read > 0 ? sampled / read : 1);
+  }
+
+  /** Get the time the job's map tasks spent in their functions per
+   *  byte of input, as the cost used to size the splits of a job.
+   *  @return Nanoseconds per input byte, or 0 if not measured
+   */
+  @JSGetter
+  public Double getByteNanos ()
+    throws IOException
+  {
+    return SplitSize.measure(job, getCounters(), getSampleRate());
+  }
+
   /** Get the pathname of the job's jar
    *  @return The pathname
    */
@@ -450,5 +1133,326 @@ public class Egg extends ScriptableObject
   {
     return (double) job.setupProgress();
   }
-}
 
+  /* private methods */
+
+  /** Run the job in the mode it is set to and wait for it to finish.
+   *  @param verbose  Verbose output or not
+   *  @return         Job completion sucess
+   */
+  private boolean complete (boolean verbose)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    Path output = FileOutputFormat.getOutputPath(job);
+    Path profile = null;
+    String fingerprint = null;
+    boolean incremental = cf.getBoolean(Eggshell.INCREMENTAL, false);
+    sampleInput(job);
+    sizeSplits(output);
+    started.add(this);
+    if (cf.getBoolean(Eggshell.CACHE, false) && !incremental && output != null) {
+      fingerprint = Fingerprint.compute(job);
+      FileSystem fs = output.getFileSystem(cf);
+      String previous = fs.exists(output) ? Fingerprint.read(cf, output) : null;
+      if (fingerprint.equals(previous)) {
+        System.err.println("job " + job.getJobName() + " reused its output " + output);
+        counters = new Counters();
+        return true;
+      }
+      if (previous != null) fs.delete(output, true);   // stale output of an earlier run
+    }
+    if (cf.getInt(Eggshell.PROFILE_INTERVAL, 0) > 0) {
+      profile = new Path(Eggshell.SCRIPT_DIR + "/profile-" + System.currentTimeMillis());
+      profile = profile.getFileSystem(cf).makeQualified(profile);
+      cf.set(Eggshell.PROFILE_DIR, profile.toString());
+    }
+    boolean success;
+    if (incremental) success = waitForIncremental(verbose);
+    else if (cf.getInt(Eggshell.SKEW_SALTS, 0) > 0) success = waitForSkew(verbose);
+    else success = run(job, verbose);
+    if (profile != null) {
+      Path report = (output != null) ? new Path(output, "_profile.txt") : profile.suffix(".txt");
+      if (success) Profiler.report(cf, profile, report);
+      else profile.getFileSystem(cf).delete(profile, true);
+    }
+    if (success && fingerprint != null) Fingerprint.write(cf, output, fingerprint);
+    if (success && output != null && !incremental && cf.getFloat(Eggshell.TASK_SECONDS, 0) > 0) {
+      double nanos = getByteNanos();
+      if (nanos > 0) SplitSize.write(cf, output, nanos);
+    }
+    return success;
+  }
+
+  /** Size the job's input splits for map tasks of the seconds set by
+   *  taskSeconds(), if any, by the cost of its input.
+   *  @param output   The output directory holding an earlier run's cost
+   */
+  private void sizeSplits (Path output)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    double seconds = cf.getFloat(Eggshell.TASK_SECONDS, 0);
+    if (seconds <= 0) return;
+    double nanos = cf.getDouble(Eggshell.BYTE_NANOS, 0);
+    if (nanos <= 0 && output != null) nanos = SplitSize.read(cf, output);
+    if (nanos <= 0) {
+      dryRun(10000.0, false);   // enough records for the functions to be compiled
+      nanos = cf.getDouble(Eggshell.BYTE_NANOS, 0);
+    }
+    if (nanos <= 0) return;
+    long size = SplitSize.apply(job, seconds, nanos);
+    System.err.println(String.format("job %s split its input into %d byte splits, at %.3fns per byte",
+                                     job.getJobName(), size, nanos));
+  }
+
+  /** Wrap a job's input format in the sampling input format, if the
+   *  job samples or limits its input and is not already wrapped.
+   *  @param j        The job
+   */
+  private void sampleInput (Job j)
+    throws IOException, ClassNotFoundException
+  {
+    Configuration cf = j.getConfiguration();
+    if (j.getInputFormatClass().equals(Sample.class)) return;
+    if (cf.getFloat(Eggshell.SAMPLE_SPLITS, 1) >= 1 && 
+        cf.getFloat(Eggshell.SAMPLE_RECORDS, 1) >= 1 && 
+        cf.getLong(Eggshell.SAMPLE_HEAD, 0) <= 0 &&
+        cf.getLong(Eggshell.LIMIT, 0) <= 0) return;
+    if (cf.getBoolean(Eggshell.INCREMENTAL, false))
+      throw new IOException("an incremental job cannot sample or limit its input");
+    cf.setClass(Eggshell.SAMPLE_INPUT_FORMAT, j.getInputFormatClass(), InputFormat.class);
+    j.setInputFormatClass(Sample.class);
+  }
+
+  /** Run a job in skew mode.  The job writes its salted results to a
+   *  temporary directory, from which a second job merges those of the
+   *  hot keys with the same combine and reduce classes into the real
+   *  output, writing the rest straight to it.  The hottest keys of the
+   *  job are reported in the output directory.
+   *  @param verbose  Verbose output or not
+   *  @return         Job completion sucess
+   */
+  private boolean waitForSkew (boolean verbose)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    if (cf.get(Eggshell.JOIN_INPUTS) != null)
+      throw new IOException("skew mode does not support reduce-side joins");
+    if (job.getReducerClass().equals(Reducer.class))
+      throw new IOException("skew mode needs a reduce function");
+    Path output = FileOutputFormat.getOutputPath(job);
+    Class<? extends OutputFormat<?, ?>> format = job.getOutputFormatClass();
+    Path temp = new Path(Eggshell.SCRIPT_DIR + "/skew-" + System.currentTimeMillis());
+    FileSystem fs = temp.getFileSystem(cf);
+    Path hot = fs.makeQualified(temp.suffix("-hot"));
+    cf.set(Eggshell.SKEW_DIR, hot.toString());
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, temp);
+    boolean success = run(job, verbose);
+    if (success) {
+      Job merge = merge(" (merge)", output, temp);
+      merge.setMapperClass(Payload.Unsalt.class);
+      merge.setOutputFormatClass(format);
+      success = run(merge, verbose);
+    }
+    if (success) HotKeys.report(cf, HotKeys.read(cf, hot), new Path(output, HotKeys.FILE));
+    fs.delete(temp, true);
+    fs.delete(hot, true);
+    return success;
+  }
+
+  /** Run a job in incremental mode.  The job's map and reduce run over
+   *  the input files not listed in the manifest of its output, writing
+   *  sequence files.  A second job merges these results with those
+   *  kept by the earlier runs using the same combine and reduce
+   *  classes, and a map-only third job writes the merged results in
+   *  the job's output format.  The new output, with the merged
+   *  results and the manifest, then replaces the old, which is moved
+   *  aside and only deleted once the new output is in place.
+   *  @param verbose  Verbose output or not
+   *  @return         Job completion sucess
+   */
+  private boolean waitForIncremental (boolean verbose)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    Configuration cf = job.getConfiguration();
+    if (cf.get(Eggshell.JOIN_INPUTS) != null)
+      throw new IOException("incremental mode does not support reduce-side joins");
+    if (!cf.getBoolean(Eggshell.REDUCE_ASSOCIATIVE, false)
+        && !job.getReducerClass().equals(Payload.Merge.class))
+      throw new IOException("incremental mode needs an associative reduce function");
+    Path output = FileOutputFormat.getOutputPath(job);
+    if (output == null) throw new IOException("incremental mode needs an output path");
+    FileSystem fs = output.getFileSystem(cf);
+    output = fs.makeQualified(output);
+    Path manifest = new Path(output, Eggshell.MANIFEST_FILE);
+
+    /* read the files processed by the earlier runs */
+    LinkedHashMap<String, String> processed = new LinkedHashMap<String, String>();
+    if (fs.exists(output)) {
+      if (!fs.exists(manifest))
+        throw new IOException("output " + output + " was not written in incremental mode");
+      BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(manifest), "UTF-8"));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        if (tab > 0) processed.put(line.substring(0, tab), line.substring(tab + 1));
+      }
+      reader.close();
+    }
+
+    /* find the new input files */
+    LinkedHashMap<String, String> inputs = new LinkedHashMap<String, String>();
+    ArrayList<Path> fresh = new ArrayList<Path>();
+    boolean changed = false;
+    for (Path input : FileInputFormat.getInputPaths(job)) {
+      FileSystem ifs = input.getFileSystem(cf);
+      for (Path file : TupleReader.list(ifs, input)) {
+        FileStatus status = ifs.getFileStatus(file);
+        String name = status.getPath().toString();
+        String stamp = status.getLen() + "\t" + status.getModificationTime();
+        String old = processed.get(name);
+        if (old == null) fresh.add(status.getPath());
+        else if (!old.equals(stamp)) changed = true;
+        inputs.put(name, stamp);
+      }
+    }
+    if (changed) {
+      System.err.println("job " + job.getJobName() + " found changed input, processing all of it");
+      processed.clear();
+      fresh.clear();
+      for (String name : inputs.keySet()) fresh.add(new Path(name));
+    }
+    if (fresh.isEmpty()) {
+      System.err.println("job " + job.getJobName() + " found no new input");
+      counters = new Counters();
+      return true;
+    }
+    processed.putAll(inputs);
+
+    /* process the new files, then merge and write out the results */
+    Path temp = new Path(Eggshell.SCRIPT_DIR + "/incremental-" + System.currentTimeMillis());
+    temp = fs.makeQualified(temp);
+    Path partial = new Path(temp, "partial");
+    Path state = new Path(temp, "state");
+    Path result = new Path(temp, "output");
+    Class<? extends OutputFormat<?, ?>> format = job.getOutputFormatClass();
+    FileInputFormat.setInputPaths(job, fresh.toArray(new Path[fresh.size()]));
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, partial);
+    boolean success;
+    if (cf.getInt(Eggshell.SKEW_SALTS, 0) > 0) success = waitForSkew(verbose);
+    else success = run(job, verbose);
+    if (success) {
+      if (changed || !fs.exists(new Path(output, Eggshell.STATE_DIR))) {
+        if (!fs.rename(partial, state))
+          throw new IOException("could not move " + partial + " to " + state);
+      } else {
+        // every data file of the old state, as the skew mode's are not all part-*
+        Job merge = merge(" (merge)", state, partial,
+                          new Path(new Path(output, Eggshell.STATE_DIR), "[!_.]*"));
+        merge.setOutputFormatClass(SequenceFileOutputFormat.class);
+        success = run(merge, verbose);
+      }
+    }
+    if (success) {
+      Job write = merge(" (output)", result, state);
+      write.setNumReduceTasks(0);
+      write.setOutputFormatClass(format);
+      success = run(write, verbose);
+    }
+    if (success) {
+      Path kept = new Path(result, Eggshell.STATE_DIR);
+      if (!fs.rename(state, kept))
+        throw new IOException("could not move " + state + " to " + kept);
+      FSDataOutputStream out = fs.create(new Path(result, Eggshell.MANIFEST_FILE));
+      for (Map.Entry<String, String> e : processed.entrySet())
+        out.write((e.getKey() + "\t" + e.getValue() + "\n").getBytes("UTF-8"));
+      out.close();
+
+      /* swap in the new output, keeping the old until it is in place */
+      Path previous = new Path(temp, "previous");
+      boolean existed = fs.exists(output);
+      if (existed && !fs.rename(output, previous))
+        throw new IOException("could not move " + output + " to " + previous);
+      fs.mkdirs(output.getParent());
+      if (!fs.rename(result, output)) {
+        if (existed && !fs.rename(previous, output))
+          throw new IOException("could not move " + result + " to " + output + 
+                                ", the old output is kept in " + previous);
+        throw new IOException("could not move " + result + " to " + output);
+      }
+    }
+    fs.delete(temp, true);
+    return success;
+  }
+
+  /** Delete the files of the job's lookup tables once it has run.
+   */
+  private void deleteLookups ()
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    FileSystem hdfs = FileSystem.get(cf);
+    for (Map.Entry<String, String> e : cf) {
+      if (e.getKey().startsWith(Eggshell.LOOKUP_FILES))
+        hdfs.delete(new Path(Eggshell.SCRIPT_DIR + "/" + e.getValue()), false);
+    }
+  }
+
+  /** Create a job reading the sequence files written by this object's
+   *  job and passing them with an identity map to the job's combine
+   *  and reduce classes, writing sequence files.
+   *  @param suffix   The suffix of the job name
+   *  @param output   The output path
+   *  @param inputs   The input paths
+   *  @return         The job
+   */
+  private Job merge (String suffix, Path output, Path... inputs)
+    throws IOException, ClassNotFoundException
+  {
+    Job merge = Job.getInstance(new Configuration(job.getConfiguration()), job.getJobName() + suffix);
+    merge.getConfiguration().setInt(Eggshell.SKEW_SALTS, 0);
+    merge.setJarByClass(this.getClass());
+    merge.setInputFormatClass(SequenceFileInputFormat.class);
+    merge.setOutputFormatClass(SequenceFileOutputFormat.class);
+    merge.setOutputKeyClass(Tuple.class);
+    merge.setOutputValueClass(Tuple.class);
+    merge.setMapperClass(Mapper.class);
+    merge.setCombinerClass(job.getCombinerClass());
+    merge.setReducerClass(job.getReducerClass());
+    merge.setNumReduceTasks(job.getNumReduceTasks());
+    FileInputFormat.setInputPaths(merge, inputs);
+    FileOutputFormat.setOutputPath(merge, output);
+    return merge;
+  }
+
+  /** Run a job and wait for it to finish, on the local engine if the
+   *  job is local and on Hadoop otherwise.  The counters of a local
+   *  run of this object's job are kept.
+   *  @param j        The job
+   *  @param verbose  Verbose output or not
+   *  @return         Job completion sucess
+   */
+  private boolean run (Job j, boolean verbose)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    int threads = j.getConfiguration().getInt(Eggshell.LOCAL_THREADS, 0);
+    if (threads <= 0) return j.waitForCompletion(verbose);
+    LocalEngine engine = new LocalEngine(j, threads);
+    boolean success = engine.run(verbose);
+    if (j == job) counters = engine.getCounters();
+    return success;
+  }
+
+  /** Sets the mapper class for the input format, unless the mapper
+   *  of a reduce-side join is in use.
+   *  @param c    The mapper class
+   */
+  private void mapper (Class<? extends Mapper<?, ?, ?, ?>> c)
+  {
+    if (job.getConfiguration().get(Eggshell.JOIN_INPUTS) == null)
+      job.setMapperClass(c);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.mozilla.javascript.*;
+import org.mozilla.javascript.annotations.JSFunction;
+import org.mozilla.javascript.annotations.JSConstructor;
+
+import java.io.IOException;
+
+/** An instance of this class encapsulates a Java SpillBuffer.  The
+ *  buffer holds values which a reduce function needs all of at once,
+ *  spilling them to local disk when they do not fit in memory.  A new
+ *  buffer is created by calling the constructor or by calling the
+ *  buffer() method of a values iterator.
+ */
+public class EggBuffer extends ScriptableObject
+{
+  private static final long serialVersionUID = 2384165590317252911L;
+
+  /* public static fields */
+
+  /** The default number of bytes a buffer keeps in memory */
+  public static final long DEFAULT_MEMORY = 64L << 20;
+
+  /* private fields */
+
+  /** The Javascript interpreter that created the object */
+  private Script script = Script.current();
+  /** The Java buffer */
+  private SpillBuffer buffer;
+
+  /* constructors */
+
+  /** Called when first defined as a Javascript class
+   *  @return This class
+   */
+  public EggBuffer () {}
+
+  /** The name of this Javascript class as a string
+   *  @return  The string name of this class
+   */
+  public String getClassName()
+  {
+    return "EggBuffer";
+  }
+
+  /** Called when a new object is instantiated from this class.  The
+   *  new object encapsulates the passed Java buffer or a new empty
+   *  buffer.  The memory kept by a new buffer is set by the job's
+   *  spillMemory() setting.
+   *  @param o    The Java buffer, if any
+   *  @return     The new object
+   */
+  @JSConstructor
+  public EggBuffer (Object o)
+  {
+    if (o instanceof SpillBuffer) buffer = (SpillBuffer) o;
+    else buffer = create();
+  }
+
+  /* public static methods */
+
+  /** Create a new Java buffer that is deleted when the reduce call
+   *  creating it returns, or else when the task finishes.
+   *  @return     The buffer
+   */
+  public static SpillBuffer create ()
+  {
+    Script script = Script.current();
+    long memory = DEFAULT_MEMORY;
+    if (script.task != null)
+      memory = script.task.getConfiguration().getLong(Eggshell.SPILL_MEMORY, memory);
+    SpillBuffer buffer = new SpillBuffer(memory);
+    script.buffers.add(buffer);
+    return buffer;
+  }
+
+  /** Delete all of the buffers created by a task.
+   *  @param script  The interpreter of the task
+   */
+  public static void closeAll (Script script)
+  {
+    for (SpillBuffer buffer : script.buffers) buffer.close();
+    script.buffers.clear();
+  }
+
+  /** Delete the buffers created since a number of buffers existed,
+   *  such as those created by a reduce call.
+   *  @param script  The interpreter of the task
+   *  @param mark    The number of buffers to keep
+   */
+  public static void closeFrom (Script script, int mark)
+  {
+    while (script.buffers.size() > mark)
+      script.buffers.remove(script.buffers.size() - 1).close();
+  }
+
+  /* public methods */
+
+  /** Add a value to the end of the buffer.
+   *  @param o    The value, either a single element or an array
+   *  @return     The 'this' object
+   */
+  @JSFunction
+  public EggBuffer add (Object o)
+    throws IOException
+  {
+    Tuple value = new Tuple();
+    value.addAll(o);
+    buffer.add(value);
+    return this;
+  }
+
+  /** Sort the values of the buffer in the order keys are sorted.
+   *  @param unique  Whether to drop duplicate values
+   *  @return        The 'this' object
+   */
+  @JSFunction
+  public EggBuffer sort (boolean unique)
+    throws IOException
+  {
+    buffer.sort(unique);
+    return this;
+  }
+
+  /** Return a new values iterator over the buffer.  A buffer can be
+   *  iterated over any number of times.
+   *  @return     The iterator
+   */
+  @JSFunction
+  public Object iterator ()
+  {
+    return script.newObject("EggIterator", new Object[]{ buffer.iterator() });
+  }
+
+  /** Return the number of values in the buffer.
+   *  @return     The number of values
+   */
+  @JSFunction
+  public double count ()
+  {
+    return buffer.size();
+  }
+
+  /** Return the number of runs of values the buffer holds on disk.
+   *  @return     The number of runs
+   */
+  @JSFunction
+  public double spills ()
+  {
+    return buffer.spills();
+  }
+
+  /** Delete the values of the buffer, freeing its memory and disk.
+   */
+  @JSFunction
+  public void close ()
+  {
+    buffer.close();
+    script.buffers.remove(buffer);
+  }
+}
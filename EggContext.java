@@ -24,11 +24,15 @@ import org.mozilla.javascript.annotations.JSGetter;
 import org.mozilla.javascript.annotations.JSSetter;
 
 import java.io.IOException;
+import java.util.HashMap;
 
 // hadoop classes
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.ReduceContext;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 
 
 /** An instance of this class encapsulates a Hadoop map-reduce
@@ -42,10 +46,20 @@ public class EggContext extends ScriptableObject
 {
   private static final long serialVersionUID = 7549795420366559595L;
 
-  /* public static fields */
-
-  /** Holds the current map-reduce task context */
-  public static TaskInputOutputContext task;  
+  /* private fields */
+
+  /** The Javascript interpreter that created the object */
+  private Script script = Script.current();
+  /** The map-reduce task context of the interpreter */
+  private TaskInputOutputContext<?, ?, Tuple, Tuple> task = (script != null) ? script.task : null;
+  /** The Tuples of the records written to named outputs */
+  private Tuple key = new Tuple();
+  private Tuple value = new Tuple();
+  /** The lookup tables opened by the object, by name */
+  private HashMap<String, Lookup> tables = new HashMap<String, Lookup>();
+  /** The Tuples of the keys and values looked up */
+  private Tuple lookupKey = new Tuple();
+  private Tuple lookupValue = new Tuple();
 
   /* constructors */
 
@@ -116,6 +130,56 @@ public class EggContext extends ScriptableObject
     return new Double(counter.getValue());
   }
 
+  /** Look up a key in a table registered by the job runner with
+   *  the Egg lookupTable method.
+   *  @param name    The name of the lookup table
+   *  @param key     The key, or an array for a multi-element key
+   *  @return        The value as a list of parameters or null if the
+   *                 key was not found
+   */
+  @JSFunction
+  public Object lookup (String name, Object key)
+    throws IOException
+  {
+    Lookup table = tables.get(name);
+    if (table == null) {
+      Configuration conf = task.getConfiguration();
+      table = Lookup.open(conf, conf.get(Eggshell.LOOKUP_FILES + name, Eggshell.LOOKUP_PREFIX + name));
+      tables.put(name, table);
+    }
+    lookupKey.clear();
+    lookupKey.addAll(key);
+    return table.get(lookupKey, lookupValue) ? lookupValue.toParams(script) : null;
+  }
+
+  /** Write a record to a named output declared by the job runner
+   *  with the Egg namedOutput method, instead of the task's output.
+   *  The record is an array of the key followed by the values, like
+   *  the result of a map or reduce function.  The optional base path,
+   *  relative to the job's output directory, splits the output into
+   *  files by any value, such as a category.  A combiner cannot write
+   *  to a named output, since it may run any number of times and its
+   *  files would clash with those of the map task it runs in.
+   *  @param name    The name of the output
+   *  @param o       The array of the key and values
+   *  @param path    The optional base path of the output files
+   */
+  @JSFunction
+  public void write (String name, Object o, Object path)
+    throws IOException, InterruptedException
+  {
+    if (!(o instanceof NativeArray))
+      throw new IOException("write needs an array of the key and values");
+    if (task instanceof ReduceContext && 
+        task.getTaskAttemptID().getTaskType() == TaskType.MAP)
+      throw new IOException("a combiner cannot write to named output " + name + 
+                            ", write it from the map or reduce function");
+    if (script.outputs == null) script.outputs = new MultipleOutputs<Tuple, Tuple>(task);
+    script.toTuples((NativeArray) o, key, value);
+    if (path instanceof CharSequence) script.outputs.write(name, key, value, path.toString());
+    else script.outputs.write(name, key, value);
+  }
+
   /* setter methods */
 
   /** Set the status message of the task.
@@ -142,7 +206,7 @@ public class EggContext extends ScriptableObject
    *  @return The Hadoop task context
    */
   @JSGetter
-  public TaskInputOutputContext getContext ()
+  public TaskInputOutputContext<?, ?, Tuple, Tuple> getContext ()
   {
     return task;
   }
@@ -29,6 +29,10 @@ import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.FileInputStream;
+import java.util.HashMap;
+
+// hadoop classes
+import org.apache.hadoop.conf.Configuration;
 
 /** Provides the global scope and includes properties that reference
  *  the standard output and standard error print streams.  Also has
@@ -42,11 +46,12 @@ public class EggGlobal extends ScriptableObject
 
   /** Used by the class's open, close and readln routines */
   private BufferedReader reader;
-      
-  /* public static fields */
-
-  /** Holds the current Javascript interpreter */
-  public static Script script;  
+  /** The Javascript interpreter that created the object */
+  private Script script = Script.current();
+  /** The configuration of the task the broadcast values belong to */
+  private Configuration conf;
+  /** The cached files of the broadcast values not yet defined, by name */
+  private HashMap<String, String> broadcasts;
 
   /* constructors */
 
@@ -65,6 +70,43 @@ public class EggGlobal extends ScriptableObject
 
   /* public methods */
 
+  /** Make the values broadcast to a task's global scope by the job
+   *  runner available under their names.  Each is decoded and defined
+   *  the first time the scope is asked for it.
+   *  @param conf    The configuration of the task
+   */
+  public void setBroadcasts (Configuration conf)
+  {
+    this.conf = conf;
+    broadcasts = new HashMap<String, String>();
+    for (String name : conf.getStrings(Eggshell.BROADCAST_NAMES, new String[0]))
+      broadcasts.put(name, Eggshell.BROADCAST_PREFIX + name);
+  }
+
+  /** Get a property of the scope, first defining the broadcast value
+   *  of the name if it has not been yet.
+   *  @param name    The name of the property
+   *  @param start   The object the property was asked of
+   *  @return        The value of the property
+   */
+  public Object get (String name, Scriptable start)
+  {
+    if (broadcasts != null && broadcasts.containsKey(name)) define(name);
+    return super.get(name, start);
+  }
+
+  /** Check for a property of the scope, including the broadcast
+   *  values not yet defined.
+   *  @param name    The name of the property
+   *  @param start   The object the property was asked of
+   *  @return        Whether the property exists
+   */
+  public boolean has (String name, Scriptable start)
+  {
+    if (broadcasts != null && broadcasts.containsKey(name)) define(name);
+    return super.has(name, start);
+  }
+
   /** Write a line to the standard output
    *  @param o    The line
    */
@@ -129,6 +171,21 @@ public class EggGlobal extends ScriptableObject
     return reader.readLine();
   }
 
+  /* private methods */
+
+  /** Decode a broadcast value and define it in the scope.
+   *  @param name    The name of the value
+   */
+  private void define (String name)
+  {
+    String file = broadcasts.remove(name);
+    try {
+      put(name, this, Broadcast.toJavascript(script, Broadcast.read(conf, file)));
+    } catch (IOException e) {
+      throw Context.throwAsScriptRuntimeEx(e);
+    }
+  }
+
   /* getter methods */
 
   /** Get the standard error print stream
@@ -21,7 +21,10 @@ import org.mozilla.javascript.*;
 import org.mozilla.javascript.annotations.JSFunction;
 import org.mozilla.javascript.annotations.JSConstructor;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.PriorityQueue;
 
 /** An instance of this class encapsulates a Java Iterator.  For each
  *  interation of the Java iterator, a Tuple Writable is returned.
@@ -30,13 +33,10 @@ public class EggIterator extends ScriptableObject
 {
   private static final long serialVersionUID = 6977601527878565246L;
 
-  /* public static fields */
-
-  /** Holds the Javascript interpreter */
-  public static Script script;
-
   /* private fields */
 
+  /** The Javascript interpreter that created the object */
+  private Script script = Script.current();
   /** The Java iterator of the Tuple Writable object */
   private Iterator iterator;
 
@@ -78,6 +78,139 @@ public class EggIterator extends ScriptableObject
     return iterator.hasNext(); 
   }
 
+  /** Count the remaining values of the iterator.
+   *  @return The number of values
+   */
+  @JSFunction
+  public double count () 
+  { 
+    long n = 0;
+    for (; iterator.hasNext(); iterator.next()) n++;
+    return n;
+  }
+
+  /** Sum a field of the remaining values of the iterator.  Values
+   *  whose field is not a number are skipped.
+   *  @param field   The position of the field, the first by default
+   *  @return        The sum
+   */
+  @JSFunction
+  public double sum (Object field) 
+  { 
+    int i = index(field);
+    double sum = 0;
+    while (iterator.hasNext()) {
+      Object o = element((Tuple) iterator.next(), i);
+      if (o instanceof Double) sum += (Double) o;
+    }
+    return sum;
+  }
+
+  /** Find the smallest field of the remaining values of the iterator.
+   *  @param field   The position of the field, the first by default
+   *  @return        The smallest number or null if there is none
+   */
+  @JSFunction
+  public Object min (Object field) 
+  { 
+    int i = index(field);
+    Double min = null;
+    while (iterator.hasNext()) {
+      Object o = element((Tuple) iterator.next(), i);
+      if (o instanceof Double && (min == null || (Double) o < min)) min = (Double) o;
+    }
+    return min;
+  }
+
+  /** Find the largest field of the remaining values of the iterator.
+   *  @param field   The position of the field, the first by default
+   *  @return        The largest number or null if there is none
+   */
+  @JSFunction
+  public Object max (Object field) 
+  { 
+    int i = index(field);
+    Double max = null;
+    while (iterator.hasNext()) {
+      Object o = element((Tuple) iterator.next(), i);
+      if (o instanceof Double && (max == null || (Double) o > max)) max = (Double) o;
+    }
+    return max;
+  }
+
+  /** Find the k largest numbers in a field of the remaining values of
+   *  the iterator.
+   *  @param k       The number of values to keep
+   *  @param field   The position of the field, the first by default
+   *  @return        An array of the largest numbers, largest first
+   */
+  @JSFunction
+  public Object topK (int k, Object field) 
+  { 
+    int i = index(field);
+    PriorityQueue<Double> heap = new PriorityQueue<Double>(Math.max(k, 1));
+    while (iterator.hasNext()) {
+      Object o = element((Tuple) iterator.next(), i);
+      if (!(o instanceof Double) || k <= 0) continue;
+      if (heap.size() < k) heap.add((Double) o);
+      else if ((Double) o > heap.peek()) {
+        heap.poll();
+        heap.add((Double) o);
+      }
+    }
+    Object[] array = new Object[heap.size()];
+    for (int n = array.length - 1; n >= 0; n--) array[n] = heap.poll();
+    return script.newArray(array);
+  }
+
+  /** Return up to the next n values of the iterator at once, each as a
+   *  list of parameters.
+   *  @param n       The most values to return
+   *  @return        An array of the values, empty when there are no
+   *                 more values
+   */
+  @JSFunction
+  public Object nextBatch (int n) 
+  { 
+    ArrayList<Object> batch = new ArrayList<Object>();
+    while (batch.size() < n && iterator.hasNext())
+      batch.add(((Tuple) iterator.next()).toParams(script));
+    return script.newArray(batch.toArray());
+  }
+
+  /** Move the remaining values of the iterator into a new buffer,
+   *  which spills to local disk rather than running out of memory.
+   *  @return The buffer
+   */
+  @JSFunction
+  public Object buffer () 
+    throws IOException
+  { 
+    SpillBuffer buffer = EggBuffer.create();
+    while (iterator.hasNext()) buffer.add((Tuple) iterator.next());
+    return script.newObject("EggBuffer", new Object[]{ buffer });
+  }
+
+  /** Merge the remaining values of the iterator element by element
+   *  in Java, merging sketches and summing numbers.
+   *  @return The merged value as a list of parameters, or null if
+   *  there are no more values.
+   */
+  @JSFunction
+  public Object merge () 
+    throws IOException
+  { 
+    Tuple merged = new Tuple();
+    boolean first = true;
+    while (iterator.hasNext()) {
+      Tuple value = (Tuple) iterator.next();
+      if (first) merged.tuple.addAll(value.tuple);
+      else merged.merge(value);
+      first = false;
+    }
+    return merged.toParams(script);
+  }
+
   /** Return the next Tuple value in the iterator as a list of parameters.
    *  @return The next value of the iterator.
    */
@@ -87,6 +220,27 @@ public class EggIterator extends ScriptableObject
     Tuple value = (Tuple) iterator.next();
     return value.toParams(script);
   }
+
+  /* private methods */
+
+  /** Convert a field argument to the position of the field.
+   *  @param field   The field argument or undefined
+   *  @return        The position of the field
+   */
+  private static int index (Object field)
+  {
+    return (field instanceof Number) ? ((Number) field).intValue() : 0;
+  }
+
+  /** Return an element of a tuple.
+   *  @param value   The tuple
+   *  @param i       The position of the element
+   *  @return        The element or null if there is none
+   */
+  private static Object element (Tuple value, int i)
+  {
+    return (i >= 0 && i < value.tuple.size()) ? value.tuple.get(i) : null;
+  }
 }
 
  
@@ -0,0 +1,160 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.mozilla.javascript.*;
+import org.mozilla.javascript.annotations.JSFunction;
+import org.mozilla.javascript.annotations.JSConstructor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/** An instance of this class encapsulates a Java Sketch.  A new
+ *  sketch is created by calling the constructor with the kind of
+ *  sketch, either "hll", "quantiles" or "topk".  Sketches can be
+ *  returned as part of a map-reduce result like any other value.
+ */
+public class EggSketch extends ScriptableObject
+{
+  private static final long serialVersionUID = 4310858915274862117L;
+
+  /* private fields */
+
+  /** The Javascript interpreter that created the object */
+  private Script script = Script.current();
+  /** The Java sketch */
+  private Sketch sketch;
+
+  /* constructors */
+
+  /** Called when first defined as a Javascript class
+   *  @return This class
+   */
+  public EggSketch () {}
+
+  /** The name of this Javascript class as a string
+   *  @return  The string name of this class
+   */
+  public String getClassName()
+  {
+    return "EggSketch";
+  }
+
+  /** Called when a new object is instantiated from this class.  The
+   *  new object either encapsulates the passed Java sketch or a new
+   *  sketch of the named kind.
+   *  @param o       The Java sketch or the kind of sketch
+   *  @param param   The precision of a HyperLogLog sketch, the
+   *                 relative error of a quantile sketch, or the
+   *                 number of values kept by a top-k sketch
+   *  @return        The new object
+   */
+  @JSConstructor
+  public EggSketch (Object o, Object param)
+  {
+    if (o instanceof Sketch) sketch = (Sketch) o;
+    else {
+      double d = (param instanceof Number) ? ((Number) param).doubleValue() : 0;
+      sketch = Sketch.create(Context.toString(o), d);
+    }
+  }
+
+  /* public methods */
+
+  /** Return the encapsulated Java sketch.
+   *  @return The sketch
+   */
+  public Sketch getSketch ()
+  {
+    return sketch;
+  }
+
+  /** Add a value to the sketch.
+   *  @param o    The value
+   *  @return     The 'this' object
+   */
+  @JSFunction
+  public EggSketch add (Object o)
+  {
+    if (o instanceof CharSequence) o = o.toString();
+    else if (o instanceof Number) o = ((Number) o).doubleValue();
+    sketch.add(o);
+    return this;
+  }
+
+  /** Merge another sketch of the same kind into this one.
+   *  @param o    The other sketch
+   *  @return     The 'this' object
+   */
+  @JSFunction
+  public EggSketch merge (Object o)
+    throws IOException
+  {
+    if (!(o instanceof EggSketch))
+      throw new IOException("merge needs a sketch, not " + Context.toString(o));
+    sketch.merge(((EggSketch) o).sketch);
+    return this;
+  }
+
+  /** Return the number of distinct values of a HyperLogLog sketch,
+   *  or the number of values added to the other kinds.
+   *  @return The estimate
+   */
+  @JSFunction
+  public double estimate ()
+  {
+    return sketch.estimate();
+  }
+
+  /** Estimate a quantile of the values added to a quantile sketch.
+   *  @param q    The quantile between 0 and 1
+   *  @return     The estimate
+   */
+  @JSFunction
+  public double quantile (double q)
+    throws IOException
+  {
+    if (!(sketch instanceof Sketch.Quantiles))
+      throw new IOException("quantile needs a quantiles sketch, not " + sketch.kind());
+    return ((Sketch.Quantiles) sketch).quantile(q);
+  }
+
+  /** Return the most frequent values of a top-k sketch.
+   *  @param n    The number of values to return
+   *  @return     An array of value and count pairs
+   */
+  @JSFunction
+  public Object top (int n)
+    throws IOException
+  {
+    if (!(sketch instanceof Sketch.TopK))
+      throw new IOException("top needs a topk sketch, not " + sketch.kind());
+    ArrayList<Object[]> list = ((Sketch.TopK) sketch).top(n);
+    Object[] array = new Object[list.size()];
+    for (int i = 0; i < array.length; i++) array[i] = script.newArray(list.get(i));
+    return script.newArray(array);
+  }
+
+  /** Convert the sketch to a string showing its estimate.
+   *  @return The string
+   */
+  @JSFunction
+  public String toString ()
+  {
+    return sketch.toString();
+  }
+}
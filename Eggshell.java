@@ -56,6 +56,86 @@ public class Eggshell extends Configured implements Tool
   public static final String REDUCE_FILE = "reduce.js";
   /** The name of the file containing the serialized Javascript combine function */ 
   public static final String COMBINE_FILE = "combine.js";
+  /** The name of the file containing the serialized Javascript join key function */ 
+  public static final String JOIN_KEY_FILE = "joinkey.js";
+  /** The name of the file containing the Bloom filter of a semi-join */ 
+  public static final String BLOOM_FILE = "semijoin.bloom";
+  /** The prefix of the files containing the lookup tables */ 
+  public static final String LOOKUP_PREFIX = "lookup-";
+  /** The prefix of the files containing the broadcast values */ 
+  public static final String BROADCAST_PREFIX = "broadcast-";
+  /** The name of the file listing the inputs processed in incremental mode */ 
+  public static final String MANIFEST_FILE = "_eggshell.manifest";
+  /** The name of the directory holding the results kept in incremental mode */ 
+  public static final String STATE_DIR = "_eggshell.state";
+  /** The configuration property listing the JSON paths to extract */
+  public static final String JSON_PATHS = "eggshell.json.paths";
+  /** The configuration property listing the names of the broadcast values */
+  public static final String BROADCAST_NAMES = "eggshell.broadcast.names";
+  /** The configuration property listing the files of a broadcast join */
+  public static final String JOIN_FILES = "eggshell.join.files";
+  /** The configuration property listing the inputs of a reduce-side join */
+  public static final String JOIN_INPUTS = "eggshell.join.inputs";
+  /** The configuration property giving the field holding the key of a semi-join */
+  public static final String SEMIJOIN_FIELD = "eggshell.semijoin.field";
+  /** The configuration property giving the separator of the fields of a semi-join */
+  public static final String SEMIJOIN_SEPARATOR = "eggshell.semijoin.separator";
+  /** The configuration property giving the false positive rate of a semi-join */
+  public static final String SEMIJOIN_ERROR = "eggshell.semijoin.error";
+  /** The prefix of the configuration properties naming the file of each lookup table */
+  public static final String LOOKUP_FILES = "eggshell.lookup.file.";
+  /** The configuration property selecting an outer broadcast join */
+  public static final String JOIN_OUTER = "eggshell.join.outer";
+  /** The configuration property giving the number of ways hot keys are split */
+  public static final String SKEW_SALTS = "eggshell.skew.salts";
+  /** The configuration property giving the share of map output making a key hot */
+  public static final String SKEW_FRACTION = "eggshell.skew.fraction";
+  /** The configuration property giving the directory the tasks write hot keys to */
+  public static final String SKEW_DIR = "eggshell.skew.dir";
+  /** The configuration property declaring the reduce function associative */
+  public static final String REDUCE_ASSOCIATIVE = "eggshell.reduce.associative";
+  /** The configuration property selecting the reduce function as the combiner */
+  public static final String COMBINE_REDUCE = "eggshell.combine.reduce";
+  /** The configuration property giving the records aggregated in the mappers */
+  public static final String AGGREGATE_RECORDS = "eggshell.aggregate.records";
+  /** The configuration property turning the timing counters on or off */
+  public static final String METRICS = "eggshell.metrics";
+  /** The configuration property turning the latency histogram on or off */
+  public static final String LATENCY = "eggshell.latency";
+  /** The configuration property giving the number of slow records logged */
+  public static final String LATENCY_SLOWEST = "eggshell.latency.slowest";
+  /** The configuration property giving the sampling interval of the profiler */
+  public static final String PROFILE_INTERVAL = "eggshell.profile.interval";
+  /** The configuration property giving the directory the tasks write profiles to */
+  public static final String PROFILE_DIR = "eggshell.profile.dir";
+  /** The configuration property giving the memory kept by a value buffer */
+  public static final String SPILL_MEMORY = "eggshell.spill.memory";
+  /** The configuration property giving the threads of the local engine */
+  public static final String LOCAL_THREADS = "eggshell.local.threads";
+  /** The configuration property turning on the reuse of unchanged job outputs */
+  public static final String CACHE = "eggshell.cache";
+  /** The configuration property turning on incremental mode */
+  public static final String INCREMENTAL = "eggshell.incremental";
+  /** The configuration property giving the fraction of input splits read */
+  public static final String SAMPLE_SPLITS = "eggshell.sample.splits";
+  /** The configuration property giving the fraction of input records read */
+  public static final String SAMPLE_RECORDS = "eggshell.sample.records";
+  /** The configuration property giving the seed of the sampling */
+  public static final String SAMPLE_SEED = "eggshell.sample.seed";
+  /** The configuration property giving the most records read from each split */
+  public static final String SAMPLE_HEAD = "eggshell.sample.head";
+  /** The configuration property giving the input format sampled */
+  public static final String SAMPLE_INPUT_FORMAT = "eggshell.sample.input.format";
+  /** The configuration property giving the most records output by a job */
+  public static final String LIMIT = "eggshell.limit";
+  /** The configuration property giving the shuffle bytes a reduce task is sized for */
+  public static final String REDUCE_BYTES = "eggshell.reduce.bytes";
+  /** The configuration property giving the seconds a map task is sized for */
+  public static final String TASK_SECONDS = "eggshell.task.seconds";
+  /** The configuration property giving the nanoseconds a map task spends per input byte */
+  public static final String BYTE_NANOS = "eggshell.byte.nanos";
+  /** The configuration property turning on pipelined mode */
+  public static final String PIPELINE = "eggshell.pipeline";
 
   /* private fields */
   
@@ -81,8 +161,6 @@ public class Eggshell extends Configured implements Tool
     script = new Script();    // start the Javascript interpreter
     script.putProperty("arguments", script.newArray(arguments));
 
-    EggGlobal.script = script;
-    Egg.script = script;
     Egg.name = name;
     Egg.conf = getConf();
 
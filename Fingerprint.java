@@ -0,0 +1,212 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+// hadoop classes
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+
+/** Class fingerprints a job so its output can be reused by a later
+ *  run of the same job.  The fingerprint is a SHA-1 digest of the
+ *  job's configuration, the contents of the files the job runner
+ *  wrote to the script directory for it, such as the serialized
+ *  functions and lookup tables, and the path, length and modification
+ *  time of each of its input files and other cached files.  A job
+ *  that finishes writes its fingerprint to its output directory.
+ *
+ *  Chained jobs are reused in turn: a recomputed output has new
+ *  modification times, which changes the fingerprint of the jobs
+ *  reading it.
+ */
+class Fingerprint
+{
+  /* public static fields */
+
+  /** The name of the file of the output directory holding the fingerprint */
+  public static final String FILE = "_eggshell.fingerprint";
+
+  /* private static fields */
+
+  /** The configuration properties left out, since they change between
+      runs of the same job, such as the split sizes chosen by its cost */
+  private static final String[] VOLATILE = {
+    "mapreduce.job.cache.files.timestamps",
+    "mapreduce.job.cache.archives.timestamps",
+    "mapreduce.job.cache.files.filesizes",
+    "mapreduce.job.cache.archives.filesizes",
+    Eggshell.PROFILE_DIR,
+    Eggshell.BYTE_NANOS,
+    FileInputFormat.SPLIT_MINSIZE,
+    FileInputFormat.SPLIT_MAXSIZE,
+  };
+
+  /* public static methods */
+
+  /** Fingerprint a job.
+   *  @param job     The job
+   *  @return        The fingerprint in hexadecimal
+   */
+  public static String compute (Job job)
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+
+    // the files of the lookup tables have fresh names on every run
+    TreeMap<String, String> lookups = new TreeMap<String, String>();
+    for (Map.Entry<String, String> e : cf) {
+      if (e.getKey().startsWith(Eggshell.LOOKUP_FILES))
+        lookups.put(e.getValue(), Eggshell.LOOKUP_PREFIX + 
+                    e.getKey().substring(Eggshell.LOOKUP_FILES.length()));
+    }
+
+    TreeMap<String, String> properties = new TreeMap<String, String>();
+    for (Map.Entry<String, String> e : cf) properties.put(e.getKey(), e.getValue());
+    for (String name : VOLATILE) properties.remove(name);
+    for (Map.Entry<String, String> e : properties.entrySet())
+      update(digest, "conf " + e.getKey() + "=" + stable(e.getValue(), lookups));
+
+    FileSystem hdfs = FileSystem.get(cf);
+    Path dir = hdfs.makeQualified(new Path(Eggshell.SCRIPT_DIR));
+    URI[] cached = job.getCacheFiles();
+    if (cached != null) {
+      for (URI uri : cached) {
+        Path path = new Path(uri);
+        FileSystem fs = path.getFileSystem(cf);
+        path = fs.makeQualified(path);
+        if (dir.equals(path.getParent())) contents(digest, fs, path, lookups);
+        else status(digest, fs.getFileStatus(path));
+      }
+    }
+
+    for (Path input : FileInputFormat.getInputPaths(job)) {
+      FileSystem fs = input.getFileSystem(cf);
+      for (Path file : TupleReader.list(fs, input))
+        status(digest, fs.getFileStatus(file));
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) hex.append(String.format("%02x", b & 0xff));
+    return hex.toString();
+  }
+
+  /** Read the fingerprint of an output directory.
+   *  @param conf    The Hadoop configuration
+   *  @param output  The output directory
+   *  @return        The fingerprint, or null if there is none
+   */
+  public static String read (Configuration conf, Path output)
+    throws IOException
+  {
+    Path path = new Path(output, FILE);
+    FileSystem fs = path.getFileSystem(conf);
+    if (!fs.exists(path)) return null;
+    FSDataInputStream in = fs.open(path);
+    String fingerprint = in.readUTF();
+    in.close();
+    return fingerprint;
+  }
+
+  /** Write the fingerprint of an output directory.
+   *  @param conf         The Hadoop configuration
+   *  @param output       The output directory
+   *  @param fingerprint  The fingerprint
+   */
+  public static void write (Configuration conf, Path output, String fingerprint)
+    throws IOException
+  {
+    Path path = new Path(output, FILE);
+    FSDataOutputStream out = path.getFileSystem(conf).create(path);
+    out.writeUTF(fingerprint);
+    out.close();
+  }
+
+  /* private static methods */
+
+  /** Add a string to the digest.
+   *  @param digest  The digest
+   *  @param s       The string
+   */
+  private static void update (MessageDigest digest, String s)
+    throws IOException
+  {
+    digest.update(s.getBytes("UTF-8"));
+    digest.update((byte) '\n');
+  }
+
+  /** Add the path, length and modification time of a file to the
+   *  digest.
+   *  @param digest  The digest
+   *  @param status  The status of the file
+   */
+  private static void status (MessageDigest digest, FileStatus status)
+    throws IOException
+  {
+    update(digest, "file " + status.getPath() + " " +
+                   status.getLen() + " " + status.getModificationTime());
+  }
+
+  /** Add the name and contents of a file to the digest.
+   *  @param digest  The digest
+   *  @param fs      The file system of the file
+   *  @param path    The file
+   *  @param lookups The stable names of the lookup table files
+   */
+  private static void contents (MessageDigest digest, FileSystem fs, Path path,
+                                Map<String, String> lookups)
+    throws IOException
+  {
+    update(digest, "contents " + stable(path.getName(), lookups));
+    InputStream in = fs.open(path);
+    byte[] buf = new byte[65536];
+    int n;
+    while ((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+    in.close();
+  }
+
+  /** Replace the names of the lookup table files in a string with
+   *  names that stay the same from run to run.
+   *  @param s       The string
+   *  @param lookups The stable names of the lookup table files
+   *  @return        The string with stable names
+   */
+  private static String stable (String s, Map<String, String> lookups)
+  {
+    for (Map.Entry<String, String> e : lookups.entrySet()) s = s.replace(e.getKey(), e.getValue());
+    return s;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+// hadoop classes
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+
+/** Class keeps the hot keys found by the map tasks of a job in skew
+ *  mode.  Each map task writes the keys it salted, with the number of
+ *  records salted, to a file of its own in a directory shared by the
+ *  job.  The job runner reads them back to tell the merge job which
+ *  keys need merging, and reports the hottest keys of the whole job
+ *  in its output directory.
+ */
+class HotKeys
+{
+  /* public static fields */
+
+  /** The name of the report of the hottest keys in the output directory */
+  public static final String FILE = "_hotkeys.txt";
+
+  /* private static fields */
+
+  /** The most keys reported */
+  private static final int REPORTED = 100;
+
+  /* public static methods */
+
+  /** Write the keys salted by a map task.  A later attempt of the task
+   *  replaces the file of an earlier one.
+   *  @param context The task context
+   *  @param keys    The records salted under each key
+   */
+  public static void write (TaskAttemptContext context, Map<List<Object>, Long> keys)
+    throws IOException
+  {
+    Configuration conf = context.getConfiguration();
+    String dir = conf.get(Eggshell.SKEW_DIR);
+    if (dir == null || keys.isEmpty()) return;
+    Path path = new Path(dir, context.getTaskAttemptID().getTaskID().toString());
+    SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(path),
+      SequenceFile.Writer.keyClass(Tuple.class), SequenceFile.Writer.valueClass(Tuple.class));
+    Tuple key = new Tuple();
+    Tuple value = new Tuple();
+    for (Map.Entry<List<Object>, Long> e : keys.entrySet()) {
+      key.clear();
+      key.tuple.addAll(e.getKey());
+      value.clear();
+      value.add(new Double(e.getValue()));
+      writer.append(key, value);
+    }
+    writer.close();
+  }
+
+  /** Read the keys salted by all of the map tasks of a job.
+   *  @param conf    The Hadoop configuration
+   *  @param dir     The directory the tasks wrote to
+   *  @return        The records salted under each key
+   */
+  public static HashMap<List<Object>, Long> read (Configuration conf, Path dir)
+    throws IOException
+  {
+    HashMap<List<Object>, Long> keys = new HashMap<List<Object>, Long>();
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) return keys;
+    Tuple key = new Tuple();
+    Tuple value = new Tuple();
+    for (FileStatus status : fs.listStatus(dir)) {
+      TupleReader reader = new TupleReader(fs, status.getPath(), conf);
+      while (reader.next(key, value)) {
+        List<Object> k = new ArrayList<Object>(key.tuple);
+        Long n = keys.get(k);
+        long salted = ((Double) value.tuple.get(0)).longValue();
+        keys.put(k, (n == null) ? salted : n + salted);
+      }
+      reader.close();
+    }
+    return keys;
+  }
+
+  /** Read the set of keys salted by any map task of a job.
+   *  @param conf    The Hadoop configuration
+   *  @return        The keys, empty if the job has no hot keys
+   */
+  public static HashSet<List<Object>> set (Configuration conf)
+    throws IOException
+  {
+    String dir = conf.get(Eggshell.SKEW_DIR);
+    if (dir == null) return new HashSet<List<Object>>();
+    return new HashSet<List<Object>>(read(conf, new Path(dir)).keySet());
+  }
+
+  /** Report the hottest keys, with the records salted under each,
+   *  the most salted first.
+   *  @param conf    The Hadoop configuration
+   *  @param keys    The records salted under each key
+   *  @param report  The path of the report to write
+   */
+  public static void report (Configuration conf, Map<List<Object>, Long> keys, Path report)
+    throws IOException
+  {
+    ArrayList<Map.Entry<List<Object>, Long>> list =
+      new ArrayList<Map.Entry<List<Object>, Long>>(keys.entrySet());
+    Collections.sort(list, new Comparator<Map.Entry<List<Object>, Long>>() {
+      public int compare (Map.Entry<List<Object>, Long> a, Map.Entry<List<Object>, Long> b)
+      {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    PrintStream out = new PrintStream(report.getFileSystem(conf).create(report), false, "UTF-8");
+    Tuple key = new Tuple();
+    for (int i = 0; i < list.size() && i < REPORTED; i++) {
+      key.clear();
+      key.tuple.addAll(list.get(i).getKey());
+      out.println(list.get(i).getValue() + "\t" + key);
+    }
+    out.close();
+  }
+}
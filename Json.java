@@ -0,0 +1,400 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.mozilla.javascript.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/** Class provides a single pass JSON parser that works directly on a
+ *  line of text.  The parser either builds the Javascript value
+ *  described by the line, or extracts a declared set of paths from
+ *  the line into a Tuple without building any intermediate objects.
+ */
+class Json
+{
+  /* private fields */
+
+  /** Holds the Javascript interpreter */
+  private Script script;
+  /** The line being parsed */
+  private String buf;
+  /** The current parse position within the line */
+  private int pos;
+  /** Holds the values found for each extracted path */
+  private Object[] found;
+
+  /** A node of the tree of paths to extract.  A node with a slot
+   *  marks the end of a path, the slot being the position of the
+   *  value in the resulting tuple.
+   */
+  static class Node
+  {
+    HashMap<String, Node> children = new HashMap<String, Node>();
+    int slot = -1;
+    int size;
+  }
+
+  /* constructors */
+
+  /** Create a parser that builds values using the interpreter.
+   *  @param script  The Javascript interpreter
+   *  @return        The new object
+   */
+  public Json (Script script)
+  {
+    this.script = script;
+  }
+
+  /* public static methods */
+
+  /** Compile a list of dotted paths, like "user.id" or "tags.0",
+   *  into a tree of nodes for extraction.
+   *  @param paths   The paths to extract
+   *  @return        The root node of the tree
+   */
+  public static Node compile (String[] paths)
+  {
+    Node root = new Node();
+    root.size = paths.length;
+    for (int i = 0; i < paths.length; i++) {
+      Node node = root;
+      for (String name : paths[i].split("\\.")) {
+        Node child = node.children.get(name);
+        if (child == null) {
+          child = new Node();
+          node.children.put(name, child);
+        }
+        node = child;
+      }
+      node.slot = i;
+    }
+    return root;
+  }
+
+  /* public methods */
+
+  /** Parse a line of JSON into a Javascript value.
+   *  @param line          The line of JSON
+   *  @return              The Javascript value
+   *  @throws IOException  The line is not valid JSON
+   */
+  public Object parse (String line)
+    throws IOException
+  {
+    buf = line;
+    pos = 0;
+    Object o = value();
+    end();
+    return o;
+  }
+
+  /** Extract the values at the given paths from a line of JSON into
+   *  the tuple, in the order the paths were declared.  A missing path
+   *  or a null value is stored as an empty string, while an object or
+   *  array value is stored as its JSON text.
+   *  @param line          The line of JSON
+   *  @param root          The compiled paths
+   *  @param tuple         The tuple to fill
+   *  @throws IOException  The line is not valid JSON
+   */
+  public void extract (String line, Node root, Tuple tuple)
+    throws IOException
+  {
+    if (found == null || found.length != root.size)
+      found = new Object[root.size];
+    for (int i = 0; i < found.length; i++) found[i] = null;
+    buf = line;
+    pos = 0;
+    walk(root);
+    end();
+    tuple.clear();
+    for (Object o : found) tuple.add(o == null ? "" : o);
+  }
+
+  /* private methods */
+
+  /** Walk the value at the current position, recording the values
+   *  that match the path tree and skipping over everything else.
+   *  @param node    The current node of the path tree
+   */
+  private void walk (Node node)
+    throws IOException
+  {
+    int start = skipSpace();
+    char c = peek();
+    if (c != '{' && c != '[') {
+      if (node.slot >= 0) found[node.slot] = value();
+      else skip();
+      return;
+    }
+    if (node.children.isEmpty()) skip();
+    else if (c == '{') walkObject(node);
+    else walkArray(node);
+    if (node.slot >= 0) found[node.slot] = buf.substring(start, pos);
+  }
+
+  /** Walk the members of the object at the current position.
+   *  @param node    The current node of the path tree
+   */
+  private void walkObject (Node node)
+    throws IOException
+  {
+    pos++;
+    if (skipSpace() < buf.length() && peek() == '}') { pos++; return; }
+    do {
+      skipSpace();
+      String name = string();
+      colon();
+      Node child = node.children.get(name);
+      if (child != null) walk(child);
+      else skip();
+    } while (!comma('}'));
+  }
+
+  /** Walk the elements of the array at the current position.
+   *  @param node    The current node of the path tree
+   */
+  private void walkArray (Node node)
+    throws IOException
+  {
+    pos++;
+    if (skipSpace() < buf.length() && peek() == ']') { pos++; return; }
+    int i = 0;
+    do {
+      Node child = node.children.get(Integer.toString(i++));
+      if (child != null) walk(child);
+      else skip();
+    } while (!comma(']'));
+  }
+
+  /** Parse the value at the current position.
+   *  @return    The Javascript value
+   */
+  private Object value ()
+    throws IOException
+  {
+    skipSpace();
+    char c = peek();
+    if (c == '{') {
+      Scriptable obj = script.newObject("Object", null);
+      pos++;
+      if (skipSpace() < buf.length() && peek() == '}') { pos++; return obj; }
+      while (true) {
+        skipSpace();
+        String name = string();
+        colon();
+        Object o = value();
+        int index = index(name);
+        if (index >= 0) ScriptableObject.putProperty(obj, index, o);
+        else ScriptableObject.putProperty(obj, name, o);
+        if (comma('}')) return obj;
+      }
+    } else if (c == '[') {
+      ArrayList<Object> list = new ArrayList<Object>();
+      pos++;
+      if (skipSpace() < buf.length() && peek() == ']') pos++;
+      else {
+        do { list.add(value()); } while (!comma(']'));
+      }
+      return script.newArray(list.toArray());
+    } else if (c == '"') {
+      return string();
+    } else if (buf.startsWith("true", pos)) {
+      pos += 4;
+      return Boolean.TRUE;
+    } else if (buf.startsWith("false", pos)) {
+      pos += 5;
+      return Boolean.FALSE;
+    } else if (buf.startsWith("null", pos)) {
+      pos += 4;
+      return null;
+    }
+    return number();
+  }
+
+  /** Skip over the value at the current position without building it.
+   */
+  private void skip ()
+    throws IOException
+  {
+    skipSpace();
+    char c = peek();
+    if (c == '"') {
+      pos++;
+      while (pos < buf.length() && (c = buf.charAt(pos)) != '"')
+        pos += (c == '\\') ? 2 : 1;
+      if (pos++ >= buf.length()) throw error();
+    } else if (c == '{' || c == '[') {
+      int depth = 0;
+      while (pos < buf.length()) {
+        c = buf.charAt(pos++);
+        if (c == '{' || c == '[') depth++;
+        else if (c == '}' || c == ']') {
+          if (--depth == 0) return;
+        } else if (c == '"') {
+          pos--;
+          skip();
+        }
+      }
+      throw error();
+    } else {
+      int start = pos;
+      while (pos < buf.length() && ",}] \t\r\n".indexOf(buf.charAt(pos)) < 0)
+        pos++;
+      if (pos == start) throw error();
+    }
+  }
+
+  /** Parse the string at the current position, handling escapes.
+   *  @return    The string
+   */
+  private String string ()
+    throws IOException
+  {
+    if (peek() != '"') throw error();
+    int start = ++pos;
+    StringBuilder sb = null;
+    while (pos < buf.length()) {
+      char c = buf.charAt(pos);
+      if (c == '"') {
+        String s = buf.substring(start, pos++);
+        return (sb == null) ? s : sb.append(s).toString();
+      }
+      if (c != '\\') { pos++; continue; }
+      if (sb == null) sb = new StringBuilder();
+      sb.append(buf, start, pos);
+      if (++pos >= buf.length()) break;
+      c = buf.charAt(pos++);
+      switch (c) {
+        case 'b': sb.append('\b'); break;
+        case 'f': sb.append('\f'); break;
+        case 'n': sb.append('\n'); break;
+        case 'r': sb.append('\r'); break;
+        case 't': sb.append('\t'); break;
+        case 'u':
+          if (pos + 4 > buf.length()) throw error();
+          try {
+            sb.append((char) Integer.parseInt(buf.substring(pos, pos + 4), 16));
+          } catch (NumberFormatException e) {
+            throw error();
+          }
+          pos += 4;
+          break;
+        default: sb.append(c);
+      }
+      start = pos;
+    }
+    throw error();
+  }
+
+  /** Parse the number at the current position.
+   *  @return    The number as a double
+   */
+  private Double number ()
+    throws IOException
+  {
+    int start = pos;
+    while (pos < buf.length() && "+-0123456789.eE".indexOf(buf.charAt(pos)) >= 0)
+      pos++;
+    try {
+      return Double.valueOf(buf.substring(start, pos));
+    } catch (NumberFormatException e) {
+      throw error();
+    }
+  }
+
+  /** Consume the colon separating an object's name from its value.
+   */
+  private void colon ()
+    throws IOException
+  {
+    skipSpace();
+    if (peek() != ':') throw error();
+    pos++;
+  }
+
+  /** Consume either a comma or the closing character of an object or
+   *  array.
+   *  @param close   The closing character
+   *  @return        Whether the closing character was found
+   */
+  private boolean comma (char close)
+    throws IOException
+  {
+    skipSpace();
+    char c = peek();
+    pos++;
+    if (c == ',') return false;
+    if (c == close) return true;
+    throw error();
+  }
+
+  /** Check that nothing but whitespace follows the parsed value.
+   */
+  private void end ()
+    throws IOException
+  {
+    if (skipSpace() < buf.length()) throw error();
+  }
+
+  /** Skip whitespace.
+   *  @return    The new position
+   */
+  private int skipSpace ()
+  {
+    while (pos < buf.length() && Character.isWhitespace(buf.charAt(pos)))
+      pos++;
+    return pos;
+  }
+
+  /** Return the character at the current position.
+   *  @return    The character
+   */
+  private char peek ()
+    throws IOException
+  {
+    if (pos >= buf.length()) throw error();
+    return buf.charAt(pos);
+  }
+
+  /** Return the array index represented by a property name.
+   *  @param name    The property name
+   *  @return        The index or -1 if the name is not an index
+   */
+  private static int index (String name)
+  {
+    int n = name.length();
+    if (n == 0 || n > 9 || (n > 1 && name.charAt(0) == '0')) return -1;
+    for (int i = 0; i < n; i++) {
+      char c = name.charAt(i);
+      if (c < '0' || c > '9') return -1;
+    }
+    return Integer.parseInt(name);
+  }
+
+  /** Create the exception thrown on malformed input.
+   *  @return    The exception
+   */
+  private IOException error ()
+  {
+    return new IOException("malformed JSON at column " + (pos + 1));
+  }
+}
@@ -0,0 +1,209 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+// hadoop classes
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+
+/** Class keeps a histogram of the time taken by a task to process
+ *  each of its records, along with the slowest records seen.  The
+ *  histogram has four buckets for every power of two nanoseconds, so
+ *  adding a time is a few integer operations, and a record is only
+ *  described once it is among the slowest.  When the task ends, its
+ *  percentiles and slowest records are written to its standard error
+ *  log, and the histogram is added to the job's counters in decades.
+ */
+class Latency
+{
+  /* public static fields */
+
+  /** The counter group the histogram is published under */
+  public static final String GROUP = "Eggshell Latency";
+
+  /* private static fields */
+
+  /** The longest description kept of a slow record */
+  private static final int DESCRIPTION = 100;
+  /** The names of the counters of each decade of nanoseconds */
+  private static final String[] DECADES = {
+    "UNDER_1US", "UNDER_10US", "UNDER_100US", "UNDER_1MS",
+    "UNDER_10MS", "UNDER_100MS", "UNDER_1S", "UNDER_10S", "OVER_10S"
+  };
+
+  /* private fields */
+
+  /** The number of records in each bucket */
+  private long[] buckets = new long[256];
+  /** The number of records */
+  private long count;
+  /** The longest time */
+  private long max;
+  /** The number of slow records to keep */
+  private int slowest;
+  /** The slowest records, the fastest of them first */
+  private PriorityQueue<Slow> slow = new PriorityQueue<Slow>();
+  /** The number of records in each decade */
+  private long[] decades = new long[DECADES.length];
+
+  /* constructors */
+
+  /** Create an empty histogram.
+   *  @param slowest The number of slow records to keep
+   *  @return        The new object
+   */
+  public Latency (int slowest)
+  {
+    this.slowest = slowest;
+  }
+
+  /* public methods */
+
+  /** Add the time taken by a record.
+   *  @param nanos   The time in nanoseconds
+   *  @param record  The key or offset of the record
+   */
+  public void add (long nanos, Object record)
+  {
+    if (nanos < 0) nanos = 0;
+    buckets[bucket(nanos)]++;
+    count++;
+    if (nanos > max) max = nanos;
+    if (slow.size() < slowest || (slowest > 0 && nanos > slow.peek().nanos)) {
+      if (slow.size() == slowest) slow.poll();
+      String s = String.valueOf(record);
+      if (s.length() > DESCRIPTION) s = s.substring(0, DESCRIPTION) + "...";
+      slow.add(new Slow(nanos, s));
+    }
+    int d = 0;
+    for (long n = 1000; d < decades.length - 1 && nanos >= n; n *= 10) d++;
+    decades[d]++;
+  }
+
+  /** Estimate a percentile of the times added.  The estimate is the
+   *  upper bound of the bucket holding the percentile, so it is at
+   *  most a quarter too high.
+   *  @param p       The percentile between 0 and 100
+   *  @return        The time in nanoseconds
+   */
+  public long percentile (double p)
+  {
+    long rank = (long) Math.ceil(p / 100 * count);
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank && seen > 0) return Math.min(upper(i), max);
+    }
+    return max;
+  }
+
+  /** Summarize the percentiles of the times added.
+   *  @return        The summary
+   */
+  public String toString ()
+  {
+    return "records " + count +
+      " p50 " + millis(percentile(50)) +
+      " p90 " + millis(percentile(90)) +
+      " p99 " + millis(percentile(99)) +
+      " p99.9 " + millis(percentile(99.9)) +
+      " max " + millis(max);
+  }
+
+  /** Publish the histogram at the end of the task.  The summary is
+   *  set as the task's status and written with the slowest records to
+   *  the error stream, and the decades are added to the counters.
+   *  @param task    The task context
+   *  @param err     The error stream
+   */
+  public void publish (TaskInputOutputContext<?, ?, ?, ?> task, PrintStream err)
+  {
+    if (count == 0) return;
+    String summary = "latency " + toString();
+    task.setStatus(summary);
+    err.println(task.getTaskAttemptID() + " " + summary);
+    if (task instanceof MapContext && ((MapContext) task).getInputSplit() instanceof FileSplit)
+      err.println("input " + ((FileSplit) ((MapContext) task).getInputSplit()).getPath());
+    ArrayList<Slow> list = new ArrayList<Slow>(slow);
+    Collections.sort(list, Collections.reverseOrder());
+    for (Slow s : list)
+      err.println("slow record " + millis(s.nanos) + " key " + s.record);
+    for (int i = 0; i < decades.length; i++) {
+      if (decades[i] > 0) task.getCounter(GROUP, DECADES[i]).increment(decades[i]);
+    }
+  }
+
+  /* private methods */
+
+  /** Return the bucket of a time.  The bucket is the position of the
+   *  time's highest bit times four plus its next two bits.
+   *  @param nanos   The time
+   *  @return        The bucket
+   */
+  private static int bucket (long nanos)
+  {
+    if (nanos < 4) return (int) nanos;
+    int bit = 63 - Long.numberOfLeadingZeros(nanos);
+    return (bit << 2) | (int) ((nanos >>> (bit - 2)) & 3);
+  }
+
+  /** Return the largest time of a bucket.
+   *  @param i       The bucket
+   *  @return        The time
+   */
+  private static long upper (int i)
+  {
+    if (i < 4) return i;
+    int bit = i >>> 2;
+    if (bit >= 63) return Long.MAX_VALUE;
+    return ((4L | (i & 3)) + 1 << (bit - 2)) - 1;
+  }
+
+  /** Format a time in milliseconds.
+   *  @param nanos   The time in nanoseconds
+   *  @return        The formatted time
+   */
+  private static String millis (long nanos)
+  {
+    return String.format("%.3fms", nanos / 1e6);
+  }
+
+  /** A slow record */
+  static class Slow implements Comparable<Slow>
+  {
+    private long nanos;
+    private String record;
+
+    Slow (long nanos, String record)
+    {
+      this.nanos = nanos;
+      this.record = record;
+    }
+
+    public int compareTo (Slow that)
+    {
+      return (nanos < that.nanos) ? -1 : (nanos == that.nanos ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,594 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// hadoop classes
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.JobStatus;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+
+/** Class runs a job inside the JVM of the job runner rather than
+ *  submitting it to Hadoop.  The map tasks of the job's input splits
+ *  run on a pool of threads, each with its own interpreter, and their
+ *  output is kept in memory as tuples.  Each task sorts its output by
+ *  partition and runs the combiner over it, then the sorted runs of
+ *  each partition are merged and the reduce tasks run on the same
+ *  pool.  The tasks use the job's own input and output formats,
+ *  partitioner, comparators, mappers and reducers, so the results are
+ *  the same as Hadoop's.  All of the map output must fit in memory.
+ */
+class LocalEngine
+{
+  /* private static fields */
+
+  /** The number of jobs run by this JVM, giving each its own ID */
+  private static AtomicInteger jobs = new AtomicInteger();
+
+  /* private fields */
+
+  /** The job */
+  private Job job;
+  /** The configuration the tasks are given */
+  private Configuration conf;
+  /** The number of threads running tasks */
+  private int threads;
+  /** The ID of the job */
+  private JobID id;
+  /** The counters of the finished tasks */
+  private Counters counters = new Counters();
+  /** The sorted map output of each partition */
+  private ArrayList<ArrayList<Record>> partitions = new ArrayList<ArrayList<Record>>();
+
+  /* constructors */
+
+  /** Create an engine for a job.
+   *  @param job     The job
+   *  @param threads The number of threads running tasks
+   *  @return        The new object
+   */
+  public LocalEngine (Job job, int threads)
+  {
+    this.job = job;
+    this.threads = Math.max(threads, 1);
+    conf = new JobConf(job.getConfiguration());
+    id = new JobID("local" + System.currentTimeMillis(), jobs.incrementAndGet());
+  }
+
+  /* public methods */
+
+  /** Run the job and wait for it to finish.
+   *  @param verbose  Whether to print the job's counters
+   *  @return         Whether the job succeeded
+   */
+  public boolean run (boolean verbose)
+    throws IOException, InterruptedException, ClassNotFoundException
+  {
+    long start = System.currentTimeMillis();
+    JobContextImpl context = new JobContextImpl(conf, id);
+    OutputFormat<?, ?> output = ReflectionUtils.newInstance(job.getOutputFormatClass(), conf);
+    output.checkOutputSpecs(context);
+    OutputCommitter committer = output.getOutputCommitter(attempt(TaskType.MAP, 0));
+    File local = localize();
+    ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int n;
+      public synchronized Thread newThread (Runnable r)
+      {
+        Thread thread = new Thread(r, "eggshell local " + id + " " + n++);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    boolean success = false;
+    try {
+      committer.setupJob(context);
+      InputFormat<?, ?> input = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+      List<InputSplit> splits = input.getSplits(context);
+      int reduces = job.getNumReduceTasks();
+      for (int i = 0; i < reduces; i++) partitions.add(new ArrayList<Record>());
+
+      ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int i = 0; i < splits.size(); i++) tasks.add(new MapTask(i, splits.get(i)));
+      runAll(pool, tasks);
+      tasks.clear();
+      for (int i = 0; i < reduces; i++) tasks.add(new ReduceTask(i));
+      runAll(pool, tasks);
+
+      committer.commitJob(context);
+      success = true;
+      if (verbose) {
+        System.err.println("local job " + id + " ran " + splits.size() + " map and " +
+                           reduces + " reduce tasks in " +
+                           (System.currentTimeMillis() - start) + " ms");
+        System.err.println(counters);
+      }
+    } catch (ExecutionException e) {
+      System.err.println("local job " + id + " failed");
+      e.getCause().printStackTrace();
+      committer.abortJob(context, JobStatus.State.FAILED);
+    } finally {
+      pool.shutdownNow();
+      partitions.clear();
+      if (local != null) FileUtil.fullyDelete(local);
+    }
+    return success;
+  }
+
+  /** Return the counters of the job's tasks.
+   *  @return        The counters
+   */
+  public Counters getCounters ()
+  {
+    return counters;
+  }
+
+  /* private methods */
+
+  /** Run tasks on the pool and wait for all of them to finish.
+   *  @param pool    The pool
+   *  @param tasks   The tasks
+   *  @throws ExecutionException  A task failed
+   */
+  private static void runAll (ExecutorService pool, ArrayList<Callable<Void>> tasks)
+    throws InterruptedException, ExecutionException
+  {
+    ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (Callable<Void> task : tasks) futures.add(pool.submit(task));
+    for (Future<Void> future : futures) future.get();
+  }
+
+  /** Make the files of the distributed cache available to the tasks
+   *  as local files.  Files on the local filesystem are used where
+   *  they are, and other files are copied to a temporary directory.
+   *  @return        The temporary directory, or null if not needed
+   */
+  private File localize ()
+    throws IOException
+  {
+    URI[] uris = job.getCacheFiles();
+    if (uris == null || uris.length == 0) return null;
+    FileSystem fs = FileSystem.getLocal(conf);
+    File dir = null;
+    String files = "";
+    for (int i = 0; i < uris.length; i++) {
+      URI uri = uris[i];
+      Path path = new Path(uri.getScheme(), uri.getAuthority(), uri.getPath());
+      FileSystem remote = path.getFileSystem(conf);
+      path = remote.makeQualified(path);
+      if (!remote.getUri().getScheme().equals(fs.getUri().getScheme())) {
+        if (dir == null) {
+          dir = File.createTempFile("eggshell", ".cache");
+          dir.delete();
+        }
+        String name = (uri.getFragment() != null) ? uri.getFragment() : path.getName();
+        Path copy = new Path(new File(new File(dir, String.valueOf(i)), name).toURI());
+        remote.copyToLocalFile(path, copy);
+        path = copy;
+      }
+      files += (i > 0 ? "," : "") + path;
+    }
+    conf.set(MRJobConfig.CACHE_LOCALFILES, files);
+    return dir;
+  }
+
+  /** Create the context of a task attempt.
+   *  @param type    The type of the task
+   *  @param n       The number of the task
+   *  @return        The context
+   */
+  private TaskAttemptContext attempt (TaskType type, int n)
+  {
+    return new TaskAttemptContextImpl(new JobConf(conf), new TaskAttemptID(new TaskID(id, type, n), 0));
+  }
+
+  /** Return the order the map output is sorted in.
+   *  @return        The comparator
+   */
+  private Comparator<Record> order ()
+  {
+    final WritableComparator sort = (WritableComparator) job.getSortComparator();
+    return new Comparator<Record>() {
+      public int compare (Record a, Record b)
+      {
+        return sort.compare(a.key, b.key);
+      }
+    };
+  }
+
+  /** Run a reducer over sorted records, as the reduce of a reduce
+   *  task or the combiner of a map task.
+   *  @param c        The reducer class
+   *  @param task     The context of the task
+   *  @param records  The sorted records
+   *  @param out      The writer of the reducer's output
+   *  @param keys     The counter of the keys read, or null
+   *  @param values   The counter of the values read
+   *  @param reporter The reporter of the task
+   */
+  @SuppressWarnings("unchecked")
+  private void reduce (Class<? extends Reducer<?, ?, ?, ?>> c, TaskAttemptContext task,
+                       List<Record> records, RecordWriter<Object, Object> out,
+                       Counter keys, Counter values, Reporter reporter)
+    throws IOException, InterruptedException
+  {
+    Configuration cf = task.getConfiguration();
+    Reducer<Tuple, Tuple, Object, Object> reducer =
+      (Reducer<Tuple, Tuple, Object, Object>) ReflectionUtils.newInstance(c, cf);
+    RawComparator<Tuple> grouping = (RawComparator<Tuple>) job.getGroupingComparator();
+    ReduceContextImpl<Tuple, Tuple, Object, Object> context =
+      new ReduceContextImpl<Tuple, Tuple, Object, Object>(cf, task.getTaskAttemptID(),
+        new Input(records), keys, values, out, null, reporter, grouping, Tuple.class, Tuple.class);
+    reducer.run(new WrappedReducer<Tuple, Tuple, Object, Object>().getReducerContext(context));
+  }
+
+  /** A map output record */
+  static class Record
+  {
+    Tuple key;
+    Tuple value;
+
+    Record (Tuple key, Tuple value)
+    {
+      this.key = key.copy();
+      this.value = value.copy();
+    }
+  }
+
+  /** The map task of an input split.  Without reducers the output is
+   *  written by the job's output format, otherwise it is kept by
+   *  partition, sorted and combined.
+   */
+  class MapTask implements Callable<Void>
+  {
+    private int n;
+    private InputSplit split;
+
+    MapTask (int n, InputSplit split)
+    {
+      this.n = n;
+      this.split = split;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Void call ()
+      throws Exception
+    {
+      TaskAttemptContext task = attempt(TaskType.MAP, n);
+      Configuration cf = task.getConfiguration();
+      Reporter reporter = new Reporter();
+      InputFormat<Object, Object> input =
+        (InputFormat<Object, Object>) ReflectionUtils.newInstance(job.getInputFormatClass(), cf);
+      RecordReader<Object, Object> reader = new CountingReader(input.createRecordReader(split, task),
+        reporter.getCounter(TaskCounter.MAP_INPUT_RECORDS));
+
+      OutputFormat<Object, Object> output =
+        (OutputFormat<Object, Object>) ReflectionUtils.newInstance(job.getOutputFormatClass(), cf);
+      OutputCommitter committer = output.getOutputCommitter(task);
+      committer.setupTask(task);    // for the named outputs of the task too
+      RecordWriter<Object, Object> out;
+      Collector collector = null;
+      if (partitions.isEmpty()) {
+        out = new CountingWriter(output.getRecordWriter(task),
+          reporter.getCounter(TaskCounter.MAP_OUTPUT_RECORDS));
+      } else {
+        out = collector = new Collector(cf, reporter);
+      }
+
+      MapContextImpl<Object, Object, Object, Object> context =
+        new MapContextImpl<Object, Object, Object, Object>(cf, task.getTaskAttemptID(), reader, out,
+                                                           committer, reporter, split);
+      reader.initialize(split, context);
+      Mapper<Object, Object, Object, Object> mapper =
+        (Mapper<Object, Object, Object, Object>) ReflectionUtils.newInstance(job.getMapperClass(), cf);
+      mapper.run(new WrappedMapper<Object, Object, Object, Object>().getMapContext(context));
+      reader.close();
+      out.close(task);
+
+      if (committer.needsTaskCommit(task)) committer.commitTask(task);
+      if (collector != null) {
+        Class<? extends Reducer<?, ?, ?, ?>> combiner = job.getCombinerClass();
+        if (combiner != null && !combiner.equals(Reducer.class)) {
+          Collector combined = new Collector(cf, reporter);
+          combined.written = reporter.getCounter(TaskCounter.COMBINE_OUTPUT_RECORDS);
+          for (ArrayList<Record> run : collector.partitions) {
+            Collections.sort(run, order());
+            reduce(combiner, task, run, combined, null,
+                   reporter.getCounter(TaskCounter.COMBINE_INPUT_RECORDS), reporter);
+          }
+          collector = combined;
+        }
+        for (int p = 0; p < partitions.size(); p++) {
+          ArrayList<Record> run = collector.partitions.get(p);
+          Collections.sort(run, order());
+          ArrayList<Record> partition = partitions.get(p);
+          synchronized (partition) { partition.addAll(run); }
+        }
+      }
+      synchronized (counters) { counters.incrAllCounters(reporter.counters); }
+      return null;
+    }
+  }
+
+  /** The reduce task of a partition.  The sorted runs of the map
+   *  tasks are merged and passed to the reducer.
+   */
+  class ReduceTask implements Callable<Void>
+  {
+    private int n;
+
+    ReduceTask (int n)
+    {
+      this.n = n;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Void call ()
+      throws Exception
+    {
+      TaskAttemptContext task = attempt(TaskType.REDUCE, n);
+      Configuration cf = task.getConfiguration();
+      Reporter reporter = new Reporter();
+      ArrayList<Record> records = partitions.get(n);
+      Collections.sort(records, order());    // merges the sorted runs
+      OutputFormat<Object, Object> output =
+        (OutputFormat<Object, Object>) ReflectionUtils.newInstance(job.getOutputFormatClass(), cf);
+      OutputCommitter committer = output.getOutputCommitter(task);
+      committer.setupTask(task);
+      RecordWriter<Object, Object> out = new CountingWriter(output.getRecordWriter(task),
+        reporter.getCounter(TaskCounter.REDUCE_OUTPUT_RECORDS));
+      reduce(job.getReducerClass(), task, records, out,
+             reporter.getCounter(TaskCounter.REDUCE_INPUT_GROUPS),
+             reporter.getCounter(TaskCounter.REDUCE_INPUT_RECORDS), reporter);
+      out.close(task);
+      if (committer.needsTaskCommit(task)) committer.commitTask(task);
+      partitions.set(n, null);
+      synchronized (counters) { counters.incrAllCounters(reporter.counters); }
+      return null;
+    }
+  }
+
+  /** Writer keeping the map output of a task by partition */
+  class Collector extends RecordWriter<Object, Object>
+  {
+    private ArrayList<ArrayList<Record>> partitions = new ArrayList<ArrayList<Record>>();
+    private Partitioner<Tuple, Tuple> partitioner;
+    private Counter written;
+
+    @SuppressWarnings("unchecked")
+    Collector (Configuration cf, Reporter reporter)
+      throws ClassNotFoundException
+    {
+      int n = LocalEngine.this.partitions.size();
+      for (int i = 0; i < n; i++) partitions.add(new ArrayList<Record>());
+      partitioner = (Partitioner<Tuple, Tuple>) ReflectionUtils.newInstance(job.getPartitionerClass(), cf);
+      written = reporter.getCounter(TaskCounter.MAP_OUTPUT_RECORDS);
+    }
+
+    public void write (Object key, Object value)
+    {
+      Tuple k = (Tuple) key, v = (Tuple) value;
+      int p = (partitions.size() == 1) ? 0 : partitioner.getPartition(k, v, partitions.size());
+      partitions.get(p).add(new Record(k, v));
+      written.increment(1);
+    }
+
+    public void close (TaskAttemptContext context) { }
+  }
+
+  /** Iterator over sorted records serializing them one at a time, as
+   *  the input of a reducer.
+   */
+  static class Input implements RawKeyValueIterator
+  {
+    private List<Record> records;
+    private int next;
+    private DataOutputBuffer keyout = new DataOutputBuffer();
+    private DataOutputBuffer valueout = new DataOutputBuffer();
+    private DataInputBuffer key = new DataInputBuffer();
+    private DataInputBuffer value = new DataInputBuffer();
+    private Progress progress = new Progress();
+
+    Input (List<Record> records)
+    {
+      this.records = records;
+    }
+
+    public DataInputBuffer getKey ()
+    {
+      return key;
+    }
+
+    public DataInputBuffer getValue ()
+    {
+      return value;
+    }
+
+    public boolean next ()
+      throws IOException
+    {
+      if (next == records.size()) return false;
+      Record record = records.get(next++);
+      keyout.reset();
+      record.key.write(keyout);
+      key.reset(keyout.getData(), keyout.getLength());
+      valueout.reset();
+      record.value.write(valueout);
+      value.reset(valueout.getData(), valueout.getLength());
+      return true;
+    }
+
+    public void close () { }
+
+    public Progress getProgress ()
+    {
+      return progress;
+    }
+  }
+
+  /** Writer counting the records written by a task to its output */
+  static class CountingWriter extends RecordWriter<Object, Object>
+  {
+    private RecordWriter<Object, Object> writer;
+    private Counter counter;
+
+    CountingWriter (RecordWriter<Object, Object> writer, Counter counter)
+    {
+      this.writer = writer;
+      this.counter = counter;
+    }
+
+    public void write (Object key, Object value)
+      throws IOException, InterruptedException
+    {
+      writer.write(key, value);
+      counter.increment(1);
+    }
+
+    public void close (TaskAttemptContext context)
+      throws IOException, InterruptedException
+    {
+      writer.close(context);
+    }
+  }
+
+  /** Reader counting the records read by a map task */
+  static class CountingReader extends RecordReader<Object, Object>
+  {
+    private RecordReader<Object, Object> reader;
+    private Counter counter;
+
+    CountingReader (RecordReader<Object, Object> reader, Counter counter)
+    {
+      this.reader = reader;
+      this.counter = counter;
+    }
+
+    public void initialize (InputSplit split, TaskAttemptContext context)
+      throws IOException, InterruptedException
+    {
+      reader.initialize(split, context);
+    }
+
+    public boolean nextKeyValue ()
+      throws IOException, InterruptedException
+    {
+      if (!reader.nextKeyValue()) return false;
+      counter.increment(1);
+      return true;
+    }
+
+    public Object getCurrentKey ()
+      throws IOException, InterruptedException
+    {
+      return reader.getCurrentKey();
+    }
+
+    public Object getCurrentValue ()
+      throws IOException, InterruptedException
+    {
+      return reader.getCurrentValue();
+    }
+
+    public float getProgress ()
+      throws IOException, InterruptedException
+    {
+      return reader.getProgress();
+    }
+
+    public void close ()
+      throws IOException
+    {
+      reader.close();
+    }
+  }
+
+  /** Reporter keeping the counters of a task */
+  static class Reporter extends StatusReporter
+  {
+    private Counters counters = new Counters();
+
+    public Counter getCounter (Enum<?> name)
+    {
+      return counters.findCounter(name);
+    }
+
+    public Counter getCounter (String group, String name)
+    {
+      return counters.findCounter(group, name);
+    }
+
+    public void progress () { }
+
+    public float getProgress ()
+    {
+      return 0;
+    }
+
+    public void setStatus (String status) { }
+  }
+}
@@ -0,0 +1,329 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+
+// hadoop classes
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+
+/** Class provides a read-only hash index of key and value Tuples kept
+ *  in a memory-mapped file.  The index is built once by the job runner
+ *  and passed to the tasks over the distributed cache.  Tasks map the
+ *  file instead of reading it onto the heap, so every task JVM on a
+ *  node shares the same pages.
+ *
+ *  The file holds the serialized entries, followed by a table of
+ *  slots, each a long with the key's hash in its upper half and the
+ *  entry's offset plus one in its lower half, followed by a footer.
+ */
+class Lookup
+{
+  /* private static fields */
+
+  /** Identifies the file format */
+  private static final int MAGIC = 0x45474c31;
+  /** The size of the footer in bytes */
+  private static final int FOOTER = 20;
+  /** The indexes already mapped by this JVM, by the local path, length
+      and modification time of the file or of the files they were
+      built from */
+  private static HashMap<String, Lookup> mapped = new HashMap<String, Lookup>();
+
+  /* private fields */
+
+  /** The memory-mapped file */
+  private MappedByteBuffer buffer;
+  /** The offset of the slot table */
+  private int table;
+  /** The number of slots, always a power of two */
+  private int slots;
+  /** Buffers used to serialize and deserialize the tuples */
+  private DataOutputBuffer out = new DataOutputBuffer();
+  private DataInputBuffer in = new DataInputBuffer();
+
+  /* constructors */
+
+  /** Map an index file into memory.
+   *  @param file          The local index file
+   *  @return              The new object
+   *  @throws IOException  The file is not an index
+   */
+  private Lookup (File file)
+    throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long length = raf.length();
+      if (length < FOOTER || length > Integer.MAX_VALUE)
+        throw new IOException("bad lookup table " + file);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      raf.close();    // the mapping stays valid after closing
+    }
+    int footer = buffer.capacity() - FOOTER;
+    table = (int) buffer.getLong(footer);
+    slots = buffer.getInt(footer + 8);
+    if (buffer.getInt(footer + 16) != MAGIC)
+      throw new IOException("bad lookup table " + file);
+  }
+
+  /* public static methods */
+
+  /** Return the index passed over the distributed cache under the
+   *  name.  The index is mapped the first time it is asked for and
+   *  then shared by all later tasks run by the JVM.
+   *  @param conf          The Hadoop configuration
+   *  @param name          The name of the cached file
+   *  @return              The index
+   */
+  public static synchronized Lookup open (Configuration conf, String name)
+    throws IOException
+  {
+    LocalFileSystem fs = FileSystem.getLocal(conf);
+    Path path = Script.findCache(conf, name);
+    if (path == null) path = new Path(Eggshell.SCRIPT_DIR + "/" + name);
+    File file = fs.pathToFile(path).getCanonicalFile();
+    String id = file.getPath() + " " + file.length() + " " + file.lastModified();
+    Lookup lookup = mapped.get(id);
+    if (lookup == null) {
+      lookup = new Lookup(file);
+      mapped.put(id, lookup);
+    }
+    return lookup;
+  }
+
+  /** Return an index of the records of files passed over the
+   *  distributed cache, such as the output of another job.  The index
+   *  is written to a local temporary file and mapped, and then shared
+   *  by the later tasks run by the JVM.
+   *  @param conf          The Hadoop configuration
+   *  @param files         The URIs of the cached files
+   *  @return              The index
+   */
+  public static synchronized Lookup build (Configuration conf, String[] files)
+    throws IOException
+  {
+    Path[] paths = new Path[files.length];
+    StringBuilder id = new StringBuilder();
+    for (int i = 0; i < files.length; i++) {
+      paths[i] = Script.findCache(conf, new Path(files[i]).toUri());
+      FileStatus status = paths[i].getFileSystem(conf).getFileStatus(paths[i]);
+      id.append(paths[i] + " " + status.getLen() + " " + status.getModificationTime() + "\n");
+    }
+    Lookup lookup = mapped.get(id.toString());
+    if (lookup == null) {
+      File file = File.createTempFile("eggshell", ".idx");
+      Writer writer = new Writer(new FileOutputStream(file));
+      Tuple key = new Tuple();
+      Tuple value = new Tuple();
+      for (Path path : paths) {
+        TupleReader reader = 
+          new TupleReader(path.getFileSystem(conf), path, conf);
+        while (reader.next(key, value)) writer.add(key, value);
+        reader.close();
+      }
+      writer.close();
+      lookup = new Lookup(file);
+      file.delete();    // the mapping outlives the file
+      mapped.put(id.toString(), lookup);
+    }
+    return lookup;
+  }
+
+  /** Hash a range of bytes.
+   *  @param b       The bytes
+   *  @param off     The start of the range
+   *  @param len     The length of the range
+   *  @return        The hash
+   */
+  public static int hash (byte[] b, int off, int len)
+  {
+    int h = 0x811c9dc5;
+    for (int i = off; i < off + len; i++) h = (h ^ b[i]) * 0x01000193;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    return h;
+  }
+
+  /* public methods */
+
+  /** Look up the value stored for the key.
+   *  @param key     The key
+   *  @param value   The tuple to fill with the value
+   *  @return        Whether the key was found
+   */
+  public synchronized boolean get (Tuple key, Tuple value)
+    throws IOException
+  {
+    return search(key, value, null) > 0;
+  }
+
+  /** Look up all of the values stored for the key, in the order they
+   *  were added.
+   *  @param key     The key
+   *  @param values  The list to add a new tuple to for each value
+   *  @return        The number of values found
+   */
+  public synchronized int getAll (Tuple key, List<Tuple> values)
+    throws IOException
+  {
+    return search(key, null, values);
+  }
+
+  /* private methods */
+
+  /** Probe the slot table for the key.  Entries with equal keys are
+   *  found in the order they were added since later entries always
+   *  land further along the probe sequence.
+   *  @param key     The key
+   *  @param value   The tuple to fill with the first value, or null
+   *  @param values  The list to add all of the values to, or null
+   *  @return        The number of values found
+   */
+  private int search (Tuple key, Tuple value, List<Tuple> values)
+    throws IOException
+  {
+    out.reset();
+    key.write(out);
+    byte[] b = out.getData();
+    int len = out.getLength();
+    int h = hash(b, 0, len);
+    int n = 0;
+    for (int i = h & (slots - 1); ; i = (i + 1) & (slots - 1)) {
+      long slot = buffer.getLong(table + 8 * i);
+      if (slot == 0) return n;
+      if ((int) (slot >>> 32) != h) continue;
+      int pos = (int) slot - 1;
+      if (buffer.getInt(pos) != len || !matches(pos + 4, b, len)) continue;
+      pos += 4 + len;
+      byte[] v = new byte[buffer.getInt(pos)];
+      for (int j = 0; j < v.length; j++) v[j] = buffer.get(pos + 4 + j);
+      in.reset(v, v.length);
+      if (values == null) {
+        value.readFields(in);
+        return 1;
+      }
+      Tuple t = new Tuple();
+      t.readFields(in);
+      values.add(t);
+      n++;
+    }
+  }
+
+  /** Compare the bytes at a position of the file with a key.
+   *  @param pos     The position in the file
+   *  @param b       The key bytes
+   *  @param len     The key length
+   *  @return        Whether they are equal
+   */
+  private boolean matches (int pos, byte[] b, int len)
+  {
+    for (int i = 0; i < len; i++)
+      if (buffer.get(pos + i) != b[i]) return false;
+    return true;
+  }
+
+  /** Class that writes an index file.  Entries are streamed out as
+   *  they are added, only their hashes and offsets are kept in memory
+   *  until the slot table is written on close.  When a key is added
+   *  more than once, the first value added is the one found.
+   */
+  static class Writer
+  {
+    private DataOutputStream stream;
+    private DataOutputBuffer out = new DataOutputBuffer();
+    private long[] entries = new long[1024];
+    private int count;
+
+    /** Create a writer on an output stream.
+     *  @param os      The output stream
+     *  @return        The new object
+     */
+    public Writer (OutputStream os)
+    {
+      stream = new DataOutputStream(new BufferedOutputStream(os));
+    }
+
+    /** Add an entry to the index.
+     *  @param key     The key tuple
+     *  @param value   The value tuple
+     */
+    public void add (Tuple key, Tuple value)
+      throws IOException
+    {
+      long pos = stream.size();
+      if (pos >= Integer.MAX_VALUE / 2)
+        throw new IOException("lookup table too large");
+      out.reset();
+      key.write(out);
+      int h = hash(out.getData(), 0, out.getLength());
+      stream.writeInt(out.getLength());
+      stream.write(out.getData(), 0, out.getLength());
+      out.reset();
+      value.write(out);
+      stream.writeInt(out.getLength());
+      stream.write(out.getData(), 0, out.getLength());
+      if (count == entries.length) {
+        long[] grown = new long[count * 2];
+        System.arraycopy(entries, 0, grown, 0, count);
+        entries = grown;
+      }
+      entries[count++] = ((long) h << 32) | (pos + 1);
+    }
+
+    /** Write the slot table and footer, and close the stream.
+     */
+    public void close ()
+      throws IOException
+    {
+      int slots = 16;
+      while (slots < 2 * count) slots <<= 1;
+      long[] table = new long[slots];
+      for (int n = 0; n < count; n++) {
+        int i = (int) (entries[n] >>> 32) & (slots - 1);
+        while (table[i] != 0) i = (i + 1) & (slots - 1);
+        table[i] = entries[n];
+      }
+      long start = stream.size();
+      for (long slot : table) stream.writeLong(slot);
+      stream.writeLong(start);
+      stream.writeInt(slots);
+      stream.writeInt(count);
+      stream.writeInt(MAGIC);
+      stream.close();
+    }
+  }
+}
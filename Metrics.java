@@ -0,0 +1,94 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// hadoop classes
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskType;
+
+
+/** Class keeps the time a task spends in each phase of running its
+ *  Javascript functions, along with counts of the records passing
+ *  through them.  The totals are kept in plain fields while the task
+ *  runs and published as Hadoop counters when it ends, since updating
+ *  a counter for every record costs more than the timing itself.
+ */
+class Metrics
+{
+  /* public static fields */
+
+  /** The counter group the metrics are published under */
+  public static final String GROUP = "Eggshell Timing";
+
+  /* public fields */
+
+  /** Nanoseconds spent creating the interpreter and deserializing
+      and setting up the task's functions */
+  public long setup;
+  /** Nanoseconds spent in the map, reduce and combine functions,
+      including the conversions made by the values iterator */
+  public long call;
+  /** Nanoseconds spent converting the results of the functions to
+      tuples */
+  public long toTuple;
+  /** Nanoseconds spent converting tuples to Javascript values */
+  public long toJavascript;
+  /** Nanoseconds spent writing output to the task's context */
+  public long write;
+  /** Nanoseconds spent in the cleanup function and flushing output */
+  public long cleanup;
+  /** The records read by a map task or the keys read by a reduce task */
+  public long recordsIn;
+  /** The records written to the task's context */
+  public long recordsOut;
+  /** The results yielded by generator functions */
+  public long yields;
+
+  /* public methods */
+
+  /** Add the metrics to the task's counters.  The time a map task
+   *  spends running its functions, including any combiner, is also
+   *  counted on its own as the cost of its input.
+   *  @param task    The task context
+   */
+  public void publish (TaskInputOutputContext<?, ?, ?, ?> task)
+  {
+    count(task, "SETUP_NANOS", setup);
+    count(task, "CALL_NANOS", call);
+    count(task, "TO_TUPLE_NANOS", toTuple);
+    count(task, "TO_JAVASCRIPT_NANOS", toJavascript);
+    count(task, "WRITE_NANOS", write);
+    count(task, "CLEANUP_NANOS", cleanup);
+    count(task, "RECORDS_IN", recordsIn);
+    count(task, "RECORDS_OUT", recordsOut);
+    count(task, "GENERATOR_YIELDS", yields);
+    if (task.getTaskAttemptID().getTaskType() == TaskType.MAP)
+      count(task, "MAP_NANOS", call + toTuple + toJavascript + write);
+  }
+
+  /* private methods */
+
+  /** Add an amount to a counter of the group.
+   *  @param task    The task context
+   *  @param name    The name of the counter
+   *  @param n       The amount
+   */
+  private static void count (TaskInputOutputContext<?, ?, ?, ?> task, String name, long n)
+  {
+    task.getCounter(GROUP, name).increment(n);
+  }
+}
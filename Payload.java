@@ -20,6 +20,14 @@ along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
 import org.mozilla.javascript.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.Random;
 
 // hadoop classes
 import org.apache.hadoop.io.Text;
@@ -27,46 +35,100 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 
 
-/** An Eggshell Payload class for map-reduce methods
+/** An Eggshell Payload class for map-reduce methods.  Each map,
+ *  combine and reduce task has a payload of its own holding its
+ *  interpreter and functions, so tasks can run side by side.
  */
 class Payload 
 {
-  /* private static fields */
+  /* private fields */
 
   /** The key tuple result */
-  private static Tuple keyout = new Tuple();  
+  private Tuple keyout = new Tuple();  
   /** The value tuple result */
-  private static Tuple valueout = new Tuple(); 
+  private Tuple valueout = new Tuple(); 
   /** Holds Javascript interpreter */
-  private static Script script;      
+  private Script script;      
   /** Holds the 'this' EggContext object */
-  private static Scriptable thisObj;
+  private Scriptable thisObj;
+  /** Holds the task context */
+  private TaskInputOutputContext<?, ?, Tuple, Tuple> task;
+  /** Holds the profiler of the task's functions, if profiling */
+  private Profiler profiler;
+  /** Holds the time taken by each record */
+  private Latency latency;
+  /** Writes the results of the Javascript functions */
+  private RecordWriter<Tuple, Tuple> writer;
+  /** Writes the results to the task's output */
+  private ContextWriter output;
+  /** Whether the task's input and output run on helper threads */
+  private boolean pipelined;
+
+  /** Holds the Bloom filter of a semi-join */
+  private Bloom bloom;
+  /** The field of the value holding the key of a semi-join, if any */
+  private int field;
+  private String separator;
+  /** Holds the hash table of a broadcast join */
+  private Lookup join;
+  /** Whether records without a match are kept */
+  private boolean outer;
+  /** The key and the matching values of a joined record */
+  private Tuple joinkey = new Tuple();
+  private ArrayList<Tuple> matches = new ArrayList<Tuple>();
+  /** The number of ways hot keys are split in skew mode, or zero */
+  private int salts;
+  /** Holds a reduced key without its salt */
+  private Tuple unsalted = new Tuple();
+  /** Writes the results of a reduce with the salt of the key added */
+  private SaltWriter salter;
 
   /* stores the Javascript functions */
 
-  private static Function fmapred; 
-  private static Function fmap;
-  private static Function freduce;
-  private static Function fsetup;
-  private static Function fcleanup;
+  private Function fmapred; 
+  private Function fmap;
+  private Function freduce;
+  private Function fsetup;
+  private Function fcleanup;
+  private Function fjoinkey;
 
   /** Shadow setup function
    */
-  private static void setup (TaskInputOutputContext task, String name) 
+  private void setup (TaskInputOutputContext<?, ?, Tuple, Tuple> task, String name) 
     throws IOException
   {
+    long start = System.nanoTime();
+    this.task = task;
+    latency = new Latency(task.getConfiguration().getInt(Eggshell.LATENCY_SLOWEST, 10));
     script = new Script();
-    EggGlobal.script = script;
-    EggIterator.script = script;
-    EggContext.task = task;
+    script.task = task;
+    int interval = task.getConfiguration().getInt(Eggshell.PROFILE_INTERVAL, 0);
+    boolean profiled = interval > 0 && task.getConfiguration().get(Eggshell.PROFILE_DIR) != null;
+    profiler = profiled ? new Profiler(interval) : null;
+    if (profiler != null) {
+      script.setProfiler(profiler);
+      profiler.start();
+    }
+    writer = output = new ContextWriter(task, script.metrics);
+    salts = task.getConfiguration().getInt(Eggshell.SKEW_SALTS, 0);
+    salter = new SaltWriter(writer);
 
-    Scriptable global = script.newObject("EggGlobal", null);
+    EggGlobal global = (EggGlobal) script.newObject("EggGlobal", null);
+    global.setBroadcasts(task.getConfiguration());
     script.setGlobalScope(global);
     thisObj = script.newObject("EggContext", null);
+    fmapred = fmap = freduce = fsetup = fcleanup = null;
 
     Object o = script.deserialize(task.getConfiguration(), name);
     if (o instanceof NativeObject) {
@@ -79,63 +141,578 @@ class Payload
     } else if (o instanceof Function) {
       fmapred = (Function) o;
     }
+    script.metrics.setup += System.nanoTime() - start;
+  }
+
+  /** Shadow setup function for the mappers.  Loads the hash table of
+   *  a broadcast join and the Bloom filter of a semi-join if there
+   *  are any.  In a map-only job, caps the records written by the task
+   *  at its share of the job's limit, if any.
+   */
+  private void setupMap (TaskInputOutputContext<?, ?, Tuple, Tuple> task) 
+    throws IOException
+  {
+    setup(task, Eggshell.MAP_FILE);
+    setupPipeline(task);
+    if (task.getNumReduceTasks() == 0) {
+      long limit = Sample.share(task);
+      if (limit >= 0) output.limit = limit;
+    }
+    long start = System.nanoTime();
+    if (fmap == null) fmap = fmapred;
+    Configuration conf = task.getConfiguration();
+    String[] files = conf.getStrings(Eggshell.JOIN_FILES);
+    join = (files != null) ? Lookup.build(conf, files) : null;
+    outer = conf.getBoolean(Eggshell.JOIN_OUTER, false);
+    Object o = script.deserialize(conf, Eggshell.JOIN_KEY_FILE);
+    fjoinkey = (o instanceof Function) ? (Function) o : null;
+    boolean filtered = conf.get(Eggshell.SEMIJOIN_FIELD) != null;
+    bloom = filtered ? Bloom.load(conf, Eggshell.BLOOM_FILE) : null;
+    field = conf.getInt(Eggshell.SEMIJOIN_FIELD, -1);
+    separator = conf.get(Eggshell.SEMIJOIN_SEPARATOR, "\t");
+    SkewWriter skew = null;
+    if (salts > 0) {
+      double fraction = conf.getFloat(Eggshell.SKEW_FRACTION, 0.01f);
+      writer = skew = new SkewWriter(task, writer, salts, fraction);
+    }
+    int records = conf.getInt(Eggshell.AGGREGATE_RECORDS, 10000);
+    if (conf.getBoolean(Eggshell.REDUCE_ASSOCIATIVE, false) && records > 0) {
+      o = script.deserialize(conf, Eggshell.REDUCE_FILE);
+      if (o instanceof NativeObject) o = script.getProperty("reduce", (NativeObject) o);
+      if (o instanceof Function) 
+        writer = new AggregateWriter(writer, (Function) o, records);
+    }
+    if (skew != null) writer = skew.new Sampler(writer);  // before any aggregation
+    script.metrics.setup += System.nanoTime() - start;
+  }
+
+  /** Shadow map function.  Calls the map function with the record.
+   *  For a semi-join, records whose key is not in the Bloom filter
+   *  are dropped before reaching the function.  For a broadcast join
+   *  the function is called once for each matching value of the hash
+   *  table instead, passed as a third argument.
+   *  @param context   Task context
+   *  @param args      The key-value arguments
+   *  @param key       The record's key
+   *  @param value     The record's value
+   */
+  private void map (TaskInputOutputContext<?, ?, Tuple, Tuple> context, 
+                           Object[] args, 
+                           Object key,
+                           Object value) 
+    throws IOException, InterruptedException
+  {
+    long start = System.nanoTime();
+    script.metrics.recordsIn++;
+    mapRecord(context, args, key, value);
+    latency.add(System.nanoTime() - start, key);
   }
 
-  /** Shadow cleanup function
+  /** Map a record, see map.
+   *  @param context   Task context
+   *  @param args      The key-value arguments
+   *  @param key       The record's key
+   *  @param value     The record's value
    */
-  private static void cleanup () 
+  private void mapRecord (TaskInputOutputContext<?, ?, Tuple, Tuple> context, 
+                                 Object[] args, 
+                                 Object key,
+                                 Object value) 
+    throws IOException, InterruptedException
   {
+    if (join == null && bloom == null) {
+      script.dispatchMapReduce(writer, fmap, thisObj, args, keyout, valueout);
+      return;
+    }
+
+    // find the key to join on
+    joinkey.clear();
+    if (fjoinkey != null) joinkey.addAll(script.callFunction(fjoinkey, thisObj, args));
+    else if (field >= 0) joinkey.add(field(value));
+    else if (key instanceof Tuple) joinkey.tuple.addAll(((Tuple) key).tuple);
+    else joinkey.add(key);
+
+    if (bloom != null && !bloom.contains(joinkey)) {
+      context.getCounter("Eggshell", "SEMIJOIN_FILTERED_RECORDS").increment(1);
+      return;
+    }
+    if (join == null) {
+      script.dispatchMapReduce(writer, fmap, thisObj, args, keyout, valueout);
+      return;
+    }
+
+    matches.clear();
+    if (join.getAll(joinkey, matches) == 0) {
+      context.getCounter("Eggshell", "UNMATCHED_JOIN_RECORDS").increment(1);
+      if (outer) matches.add(null);
+    }
+    for (Tuple match : matches) {
+      Object[] joined = { args[0], args[1], 
+                          match != null ? match.toParams(script) : null };
+      script.dispatchMapReduce(writer, fmap, thisObj, joined, keyout, valueout);
+    }
+  }
+
+  /** Shadow reduce function.  Calls the reduce function with the key
+   *  and an iterator of its values.  In skew mode the salt is taken
+   *  off the key before the call and added back to the keys written.
+   *  @param key       The key
+   *  @param values    The values
+   */
+  private void reduce (Tuple key, Iterable<Tuple> values)
+    throws IOException, InterruptedException
+  {
+    long start = System.nanoTime();
+    script.metrics.recordsIn++;
+    RecordWriter<Tuple, Tuple> out = writer;
+    if (salts > 0) {
+      int last = key.tuple.size() - 1;
+      unsalted.clear();
+      unsalted.tuple.addAll(key.tuple.subList(0, last));
+      salter.salt = (Double) key.tuple.get(last);
+      key = unsalted;
+      out = salter;
+    }
+    Object args[] = new Object[]{ values.iterator() };
+    Scriptable itr = script.newObject("EggIterator", args); 
+    args = new Object[]{ key.toParams(script), itr };
+    int mark = script.buffers.size();
+    try {
+      script.dispatchMapReduce(out, freduce, thisObj, args, keyout, valueout);
+    } finally {
+      EggBuffer.closeFrom(script, mark);
+    }
+    latency.add(System.nanoTime() - start, key);
+  }
+
+  /** Shadow setup function for the reducers.  Caps the records
+   *  written by the task at its share of the job's limit, if any.
+   *  @param task      Task context
+   *  @param name      The name of the file holding the functions
+   */
+  private void setupReduce (TaskInputOutputContext<?, ?, Tuple, Tuple> task, String name)
+    throws IOException
+  {
+    setup(task, name);
+    setupPipeline(task);
+    if (freduce == null) freduce = fmapred;
+    long limit = Sample.share(task.getConfiguration().getLong(Eggshell.LIMIT, 0),
+                              task.getNumReduceTasks(), task.getTaskAttemptID().getTaskID().getId());
+    if (limit >= 0) output.limit = limit;
+  }
+
+  /** Start the writer thread of the task in pipelined mode.
+   *  @param task      Task context
+   */
+  private void setupPipeline (TaskInputOutputContext<?, ?, Tuple, Tuple> task)
+  {
+    pipelined = task.getConfiguration().getBoolean(Eggshell.PIPELINE, false);
+    if (pipelined) output.pipe = new Pipeline.Output(task);
+  }
+
+  /** Check whether the task has written its share of the job's limit.
+   *  @return          Whether the task should stop
+   */
+  private boolean full ()
+  {
+    return script.metrics.recordsOut >= output.limit;
+  }
+
+  /** Return the field of a record's value holding its key.  A tuple
+   *  value is indexed directly while a string value is first split at
+   *  the separator.
+   *  @param value     The record's value
+   *  @return          The field or an empty string if missing
+   */
+  private Object field (Object value)
+  {
+    if (value instanceof Tuple) {
+      Tuple t = (Tuple) value;
+      return (field < t.tuple.size()) ? t.tuple.get(field) : "";
+    }
+    String s = value.toString();
+    int start = 0;
+    for (int i = 0; i < field; i++) {
+      start = s.indexOf(separator, start);
+      if (start < 0) return "";
+      start += separator.length();
+    }
+    int end = s.indexOf(separator, start);
+    return s.substring(start, end < 0 ? s.length() : end);
+  }
+
+  /** Shadow cleanup function.  Flushes any output the writers still
+   *  hold before calling the cleanup function.
+   */
+  private void cleanup () 
+    throws IOException, InterruptedException
+  {
+    long start = System.nanoTime();
+    writer.close(null);
+    output.close(null);
     if (fcleanup != null) script.callFunction(fcleanup, thisObj, null);
+    EggBuffer.closeAll(script);
+    if (script.outputs != null) script.outputs.close();
+    script.metrics.cleanup += System.nanoTime() - start;
+    if (task.getConfiguration().getBoolean(Eggshell.METRICS, true))
+      script.metrics.publish(task);
+    if (task.getConfiguration().getBoolean(Eggshell.LATENCY, true))
+      latency.publish(task, System.err);
+    if (profiler != null) {
+      Path dir = new Path(task.getConfiguration().get(Eggshell.PROFILE_DIR));
+      profiler.stop(task.getConfiguration(), dir, task.getTaskAttemptID().toString());
+    }
     script.exit();
   }
 
-  /** The text input format mapper class
+  /** Writer of the task's output to its context
+   */
+  static class ContextWriter extends RecordWriter<Tuple, Tuple>
+  {
+    private TaskInputOutputContext<?, ?, Tuple, Tuple> context;
+    private Metrics metrics;
+    /** The most records written, any more are dropped */
+    long limit = Long.MAX_VALUE;
+    /** Writes the records on a helper thread in pipelined mode */
+    Pipeline.Output pipe;
+
+    ContextWriter (TaskInputOutputContext<?, ?, Tuple, Tuple> context, Metrics metrics)
+    {
+      this.context = context;
+      this.metrics = metrics;
+    }
+
+    public void write (Tuple key, Tuple value)
+      throws IOException, InterruptedException 
+    {
+      if (metrics.recordsOut >= limit) return;
+      long start = System.nanoTime();
+      if (pipe != null) pipe.write(key, value);
+      else context.write(key, value);
+      metrics.write += System.nanoTime() - start;
+      metrics.recordsOut++;
+    }
+
+    public void close (TaskAttemptContext context)
+      throws IOException, InterruptedException 
+    {
+      if (pipe != null) pipe.close();
+    }
+  }
+
+  /** Writer of map output in skew mode.  A random sample of the keys
+   *  of the map function's output, taken by its Sampler before the
+   *  output is aggregated, is counted in a top-k sketch, and a key
+   *  found to make up more than its share of the output is hot.  Every
+   *  key gets a salt added to its end, zero for most keys, while the
+   *  records of a hot key are dealt out over the salts from one up so
+   *  they reach several reducers.  The records salted are counted
+   *  under each hot key and written out by HotKeys when the task
+   *  finishes.
+   */
+  static class SkewWriter extends RecordWriter<Tuple, Tuple>
+  {
+    /** One record in this many is added to the sketch */
+    private static final int SAMPLE = 16;
+    /** The number of records written before any key can be hot */
+    private static final int MINIMUM = 1000;
+    /** The number of times a hot key must have been sampled */
+    private static final int HITS = 8;
+
+    private TaskInputOutputContext<?, ?, ?, ?> context;
+    private RecordWriter<Tuple, Tuple> out;
+    private int salts;
+    private double fraction;
+    private Sketch.TopK sketch;
+    private Random random;
+    private long written;
+    private int next;
+    private HashMap<List<Object>, Long> salted = new HashMap<List<Object>, Long>();
+
+    SkewWriter (TaskInputOutputContext<?, ?, ?, ?> context, RecordWriter<Tuple, Tuple> out,
+                int salts, double fraction)
+    {
+      this.context = context;
+      this.out = out;
+      this.salts = salts;
+      this.fraction = fraction;
+      sketch = new Sketch.TopK((int) Math.ceil(2 / fraction));
+      random = new Random(context.getTaskAttemptID().getTaskID().hashCode());
+    }
+
+    public void write (Tuple key, Tuple value)
+      throws IOException, InterruptedException 
+    {
+      int salt = 0;
+      long hits = (written >= MINIMUM) ? sketch.frequency(key.tuple) : 0;
+      if (hits >= HITS && hits * SAMPLE >= fraction * written) {
+        salt = 1 + next++ % salts;
+        List<Object> k = new ArrayList<Object>(key.tuple);
+        Long n = salted.get(k);
+        salted.put(k, (n == null) ? 1 : n + 1);
+        context.getCounter("Eggshell", "SALTED_RECORDS").increment(1);
+      }
+      key.add(new Double(salt));
+      out.write(key, value);
+      key.tuple.remove(key.tuple.size() - 1);
+    }
+
+    public void close (TaskAttemptContext context)
+      throws IOException
+    {
+      HotKeys.write(this.context, salted);
+    }
+
+    /** Writer of the map function's output, sampling its keys for the
+     *  skew writer before passing the records on.
+     */
+    class Sampler extends RecordWriter<Tuple, Tuple>
+    {
+      private RecordWriter<Tuple, Tuple> out;
+
+      Sampler (RecordWriter<Tuple, Tuple> out)
+      {
+        this.out = out;
+      }
+
+      public void write (Tuple key, Tuple value)
+        throws IOException, InterruptedException 
+      {
+        written++;
+        if (random.nextInt(SAMPLE) == 0) sketch.add(new ArrayList<Object>(key.tuple));
+        out.write(key, value);
+      }
+
+      public void close (TaskAttemptContext context)
+        throws IOException, InterruptedException 
+      {
+        out.close(context);
+      }
+    }
+  }
+
+  /** Writer of map output that aggregates it in memory with an
+   *  associative reduce function.  The values written are grouped by
+   *  key until the number held reaches the limit or the task ends,
+   *  then each group of more than one value is reduced and the results
+   *  written on.  Acts as a combiner run before the output is ever
+   *  serialized.
+   */
+  class AggregateWriter extends RecordWriter<Tuple, Tuple>
+  {
+    private RecordWriter<Tuple, Tuple> out;
+    private Function freduce;
+    private int limit;
+    private int held;
+    private LinkedHashMap<List<Object>, ArrayList<Tuple>> groups =
+      new LinkedHashMap<List<Object>, ArrayList<Tuple>>();
+    private Tuple groupkey = new Tuple();
+    private Tuple keyout = new Tuple();
+    private Tuple valueout = new Tuple();
+
+    AggregateWriter (RecordWriter<Tuple, Tuple> out, Function freduce, int limit)
+    {
+      this.out = out;
+      this.freduce = freduce;
+      this.limit = limit;
+    }
+
+    public void write (Tuple key, Tuple value)
+      throws IOException, InterruptedException 
+    {
+      ArrayList<Tuple> values = groups.get(key.tuple);
+      if (values == null) {
+        values = new ArrayList<Tuple>();
+        groups.put(new ArrayList<Object>(key.tuple), values);
+      }
+      values.add(value.copy());    // sketches too, the caller may change them
+      if (++held >= limit) flush();
+    }
+
+    public void close (TaskAttemptContext context) 
+      throws IOException, InterruptedException 
+    {
+      flush();
+      out.close(context);
+    }
+
+    private void flush ()
+      throws IOException, InterruptedException 
+    {
+      for (Map.Entry<List<Object>, ArrayList<Tuple>> group : groups.entrySet()) {
+        groupkey.clear();
+        groupkey.tuple.addAll(group.getKey());
+        ArrayList<Tuple> values = group.getValue();
+        if (values.size() == 1) {
+          out.write(groupkey, values.get(0));
+          continue;
+        }
+        Object args[] = new Object[]{ values.iterator() };
+        Scriptable itr = script.newObject("EggIterator", args); 
+        args = new Object[]{ groupkey.toParams(script), itr };
+        script.dispatchMapReduce(out, freduce, thisObj, args, keyout, valueout);
+      }
+      groups.clear();
+      held = 0;
+    }
+  }
+
+  /** Writer of the results of a reduce in skew mode.  Adds the salt
+   *  of the key being reduced to the end of each key written, so the
+   *  partial results of a hot key are kept apart until merged.
+   */
+  static class SaltWriter extends RecordWriter<Tuple, Tuple>
+  {
+    private RecordWriter<Tuple, Tuple> out;
+    private Double salt;
+
+    SaltWriter (RecordWriter<Tuple, Tuple> out)
+    {
+      this.out = out;
+    }
+
+    public void write (Tuple key, Tuple value)
+      throws IOException, InterruptedException 
+    {
+      key.add(salt);
+      out.write(key, value);
+      key.tuple.remove(key.tuple.size() - 1);
+    }
+
+    public void close (TaskAttemptContext context) { }
+  }
+
+  /** Base of the mapper classes taking their records decoded into
+   *  strings and tuples.  In pipelined mode the records are read and
+   *  decoded on a helper thread, leaving the task's thread to run the
+   *  Javascript functions.
    */
-  static class TextMap extends Mapper<Object, Text, Tuple, Tuple> 
+  static abstract class DecodedMap<K, V> extends Mapper<K, V, Tuple, Tuple> 
   {
+    protected Payload payload = new Payload();
+
+    /** Map a decoded record.
+     *  @param key       The record's key
+     *  @param value     The record's value
+     *  @param context   Task context
+     */
+    abstract void record (Object key, Object value, Context context)
+      throws IOException, InterruptedException;
+
     protected void setup (Context context) 
       throws IOException
     {
-      Payload.setup(context, Eggshell.MAP_FILE);
-      if (fmap == null) fmap = fmapred;
+      payload.setupMap(context);
     }
     
     protected void cleanup (Context context) 
-      throws IOException
+      throws IOException, InterruptedException
     {
-      Payload.cleanup();
+      payload.cleanup();
     }
     
-    protected void map (Object key, Text value, Context context) 
+    protected void map (K key, V value, Context context) 
+      throws IOException, InterruptedException 
+    {
+      record(Pipeline.decode(key, false), Pipeline.decode(value, false), context);
+    }
+
+    public void run (Context context)
+      throws IOException, InterruptedException 
+    {
+      setup(context);
+      Pipeline.Input input = payload.pipelined ? new Pipeline.Input(context) : null;
+      try {
+        if (input == null) {
+          while (context.nextKeyValue())
+            map(context.getCurrentKey(), context.getCurrentValue(), context);
+        } else {
+          while (input.next()) record(input.key(), input.value(), context);
+        }
+      } finally {
+        if (input != null) input.close();
+        cleanup(context);
+      }
+    }
+  }
+
+  /** The text input format mapper class
+   */
+  static class TextMap extends DecodedMap<Object, Text> 
+  {
+    void record (Object key, Object value, Context context) 
       throws IOException, InterruptedException 
     {
-      Object[] args = { key.toString(), value.toString() };
-      script.dispatchMapReduce(context, fmap, thisObj, args, keyout, valueout);
+      Object[] args = { key, value };
+      payload.map(context, args, key, value);
     }
   }
   
   /** The sequence file input format mapper class
    */
-  static class TupleMap extends Mapper<Tuple, Tuple, Tuple, Tuple> 
+  static class TupleMap extends DecodedMap<Tuple, Tuple> 
   {
-    protected void setup (Context context) 
-      throws IOException
+    void record (Object key, Object value, Context context) 
+      throws IOException, InterruptedException 
     {
-      Payload.setup(context, Eggshell.MAP_FILE);
-      if (fmap == null) fmap = fmapred;
+      Tuple k = (Tuple) key;
+      Tuple v = (Tuple) value;
+      Object[] args = { k.toParams(payload.script), v.toParams(payload.script) };
+      payload.map(context, args, k, v);
     }
-    
-    protected void cleanup (Context context) 
+  }
+  
+  /** The JSON lines input format mapper class.  Each line is parsed
+   *  in Java and passed to the map function as a Javascript value.
+   *  If paths were declared, only those paths are extracted and passed
+   *  as a list of parameters instead.  Without a map function the
+   *  first extracted path is written out as the key and the rest as
+   *  the value.
+   */
+  static class JsonMap extends DecodedMap<Object, Text> 
+  {
+    private Json json;
+    private Json.Node paths;
+    private Tuple fields = new Tuple();
+
+    protected void setup (Context context) 
       throws IOException
     {
-      Payload.cleanup();
+      super.setup(context);
+      json = new Json(payload.script);
+      String[] names = context.getConfiguration().getStrings(Eggshell.JSON_PATHS);
+      if (names != null) paths = Json.compile(names);
     }
     
-    protected void map (Tuple key, Tuple value, Context context) 
+    void record (Object key, Object value, Context context) 
       throws IOException, InterruptedException 
     {
-      Object[] args = { key.toParams(script), value.toParams(script) };
-      script.dispatchMapReduce(context, fmap, thisObj, args, keyout, valueout);
+      String line = (String) value;
+      Object o;
+      try {
+        if (paths == null) o = json.parse(line);
+        else {
+          json.extract(line, paths, fields);
+          o = fields.toParams(payload.script);
+        }
+      } catch (IOException e) {
+        context.getCounter("Eggshell", "MALFORMED_JSON_RECORDS").increment(1);
+        return;
+      }
+      if (payload.fmap != null) {
+        Object[] args = { key, o };
+        if (paths != null) payload.map(context, args, fields.tuple.get(0), fields);
+        else payload.map(context, args, args[0], line);
+      } else if (paths != null) {
+        payload.script.metrics.recordsIn++;
+        payload.keyout.clear();
+        payload.valueout.clear();
+        for (int i = 0; i < fields.tuple.size(); i++) {
+          if (i == 0) payload.keyout.add(fields.tuple.get(i));
+          else payload.valueout.add(fields.tuple.get(i));
+        }
+        payload.writer.write(payload.keyout, payload.valueout);
+      }
     }
   }
   
@@ -143,26 +720,37 @@ class Payload
    */
   static class Reduce extends Reducer<Tuple, Tuple, Tuple, Tuple> 
   {
+    private Payload payload = new Payload();
+
     protected void setup (Context context) 
       throws IOException
     {
-      Payload.setup(context, Eggshell.REDUCE_FILE);
-      if (freduce == null) freduce = fmapred;
+      payload.setupReduce(context, Eggshell.REDUCE_FILE);
     }
     
     protected void cleanup (Context context) 
-      throws IOException
+      throws IOException, InterruptedException
     {
-      Payload.cleanup();
+      payload.cleanup();
     }
     
     protected void reduce (Tuple key, Iterable<Tuple> values, Context context) 
       throws IOException, InterruptedException 
     {
-      Object args[] = new Object[]{ values.iterator() };
-      Scriptable itr = script.newObject("EggIterator", args); 
-      args = new Object[]{ key.toParams(script), itr };
-      script.dispatchMapReduce(context, freduce, thisObj, args, keyout, valueout);
+      payload.reduce(key, values);
+    }
+
+    /** Reduce the keys until the task reaches its share of the limit */
+    public void run (Context context)
+      throws IOException, InterruptedException 
+    {
+      setup(context);
+      try {
+        while (!payload.full() && context.nextKey())
+          reduce(context.getCurrentKey(), context.getValues(), context);
+      } finally {
+        cleanup(context);
+      }
     }
   }
 
@@ -170,26 +758,268 @@ class Payload
    */
   static class Combine extends Reducer<Tuple, Tuple, Tuple, Tuple> 
   {
+    private Payload payload = new Payload();
+
     protected void setup (Context context) 
       throws IOException
     {
-      Payload.setup(context, Eggshell.COMBINE_FILE);
-      if (freduce == null) freduce = fmapred;
+      boolean shared = context.getConfiguration().getBoolean(Eggshell.COMBINE_REDUCE, false);
+      payload.setup(context, shared ? Eggshell.REDUCE_FILE : Eggshell.COMBINE_FILE);
+      if (payload.freduce == null) payload.freduce = payload.fmapred;
     }
     
     protected void cleanup (Context context) 
+      throws IOException, InterruptedException
+    {
+      payload.cleanup();
+    }
+    
+    protected void reduce (Tuple key, Iterable<Tuple> values, Context context) 
+      throws IOException, InterruptedException 
+    {
+      payload.reduce(key, values);
+    }
+  }
+
+  /** The merging reducer class, also used as a combiner.  Merges the
+   *  values of each key element by element in Java, merging sketches
+   *  and summing numbers.
+   */
+  static class Merge extends Reducer<Tuple, Tuple, Tuple, Tuple> 
+  {
+    private Tuple merged = new Tuple();
+
+    protected void reduce (Tuple key, Iterable<Tuple> values, Context context) 
+      throws IOException, InterruptedException 
+    {
+      merged.clear();
+      boolean first = true;
+      for (Tuple value : values) {
+        if (first) merged.tuple.addAll(value.tuple);
+        else merged.merge(value);
+        first = false;
+      }
+      context.write(key, merged);
+    }
+  }
+
+  /** The mapper class of the merge job run after a job in skew
+   *  mode.  Takes the salt off the keys, bringing the partial results
+   *  of each hot key back together for the reducer.  The results of
+   *  the keys no map task salted are already whole, and are written
+   *  straight to the job's output instead.
+   */
+  static class Unsalt extends Mapper<Tuple, Tuple, Tuple, Tuple> 
+  {
+    private HashSet<List<Object>> hot;
+    private MultipleOutputs<Tuple, Tuple> outputs;
+
+    protected void setup (Context context) 
       throws IOException
     {
-      Payload.cleanup();
+      hot = HotKeys.set(context.getConfiguration());
+      outputs = new MultipleOutputs<Tuple, Tuple>(context);
+    }
+
+    protected void cleanup (Context context) 
+      throws IOException, InterruptedException
+    {
+      outputs.close();
+    }
+
+    protected void map (Tuple key, Tuple value, Context context) 
+      throws IOException, InterruptedException 
+    {
+      Double salt = (Double) key.tuple.remove(key.tuple.size() - 1);
+      if (salt != 0 || hot.contains(key.tuple)) context.write(key, value);
+      else outputs.write(key, value, "unsalted");
+    }
+  }
+
+  /** The mapper class of a reduce-side join.  Each input of the join
+   *  has its own map function.  The position of the input in the
+   *  join, its tag, is added to the end of each key written so the
+   *  values of the inputs are sorted in the order the inputs were
+   *  declared.
+   */
+  static class JoinMap extends Mapper<Object, Object, Tuple, Tuple> 
+  {
+    private Payload payload = new Payload();
+
+    protected void setup (Context context) 
+      throws IOException
+    {
+      String split = ((FileSplit) context.getInputSplit()).getPath().toString();
+      String[] inputs = context.getConfiguration().getStrings(Eggshell.JOIN_INPUTS);
+      int tag = -1;
+      for (int i = 0; i < inputs.length; i++) {
+        if ((split.equals(inputs[i]) || split.startsWith(inputs[i] + "/"))
+            && (tag < 0 || inputs[i].length() > inputs[tag].length()))
+          tag = i;
+      }
+      if (tag < 0) throw new IOException("not a join input: " + split);
+      payload.setup(context, "map" + tag + ".js");
+      if (payload.fmap == null) payload.fmap = payload.fmapred;
+      final Double t = new Double(tag);
+      final RecordWriter<Tuple, Tuple> out = payload.writer;
+      payload.writer = new RecordWriter<Tuple, Tuple>() {
+        public void write (Tuple key, Tuple value)
+          throws IOException, InterruptedException 
+        {
+          key.add(t);
+          out.write(key, value);
+        }
+
+        public void close (TaskAttemptContext context) { }
+      };
+    }
+    
+    protected void cleanup (Context context) 
+      throws IOException, InterruptedException
+    {
+      payload.cleanup();
+    }
+    
+    protected void map (Object key, Object value, Context context) 
+      throws IOException, InterruptedException 
+    {
+      long start = System.nanoTime();
+      payload.script.metrics.recordsIn++;
+      Object k = (key instanceof Tuple) ? ((Tuple) key).toParams(payload.script) : key.toString();
+      Object v = (value instanceof Tuple) ? ((Tuple) value).toParams(payload.script) : value.toString();
+      Object[] args = { k, v };
+      payload.script.dispatchMapReduce(payload.writer, payload.fmap, payload.thisObj, args, payload.keyout, payload.valueout);
+      payload.latency.add(System.nanoTime() - start, key);
+    }
+  }
+
+  /** The reducer class of a reduce-side join.  The reduce function is
+   *  called with the key followed by the values of each input.  The
+   *  values of all but the last input arrive first and are passed as
+   *  buffers, which spill to disk, while the values of the last input
+   *  are streamed through an iterator, so the largest input should be
+   *  declared last.
+   */
+  static class JoinReduce extends Reducer<Tuple, Tuple, Tuple, Tuple> 
+  {
+    private Payload payload = new Payload();
+    private int inputs;
+    private Tuple group = new Tuple();
+
+    protected void setup (Context context) 
+      throws IOException
+    {
+      payload.setupReduce(context, Eggshell.REDUCE_FILE);
+      inputs = context.getConfiguration().getStrings(Eggshell.JOIN_INPUTS).length;
+    }
+    
+    protected void cleanup (Context context) 
+      throws IOException, InterruptedException
+    {
+      payload.cleanup();
     }
     
     protected void reduce (Tuple key, Iterable<Tuple> values, Context context) 
       throws IOException, InterruptedException 
     {
-      Object args[] = new Object[]{ values.iterator() };
-      Scriptable itr = script.newObject("EggIterator", args); 
-      args = new Object[]{ key.toParams(script), itr };
-      script.dispatchMapReduce(context, freduce, thisObj, args, keyout, valueout);
+      long start = System.nanoTime();
+      payload.script.metrics.recordsIn++;
+      int last = key.tuple.size() - 1;
+      group.clear();
+      group.tuple.addAll(key.tuple.subList(0, last));
+
+      // buffer the values of all but the last input
+      int mark = payload.script.buffers.size();
+      try {
+        ArrayList<SpillBuffer> buffers = new ArrayList<SpillBuffer>();
+        for (int i = 0; i < inputs - 1; i++) buffers.add(EggBuffer.create());
+        final Iterator<Tuple> iterator = values.iterator();
+        Tuple first = null;
+        while (iterator.hasNext()) {
+          Tuple value = iterator.next();
+          int tag = ((Double) key.tuple.get(last)).intValue();
+          if (tag == inputs - 1) {
+            first = value;
+            break;
+          }
+          buffers.get(tag).add(value);
+        }
+
+        // stream the values of the last input
+        final Tuple head = first;
+        Iterator<Tuple> stream = new Iterator<Tuple>() {
+          private Tuple next = head;
+
+          public boolean hasNext () 
+          { 
+            return next != null || iterator.hasNext(); 
+          }
+
+          public Tuple next () 
+          {
+            Tuple value = (next != null) ? next : iterator.next();
+            next = null;
+            return value;
+          }
+
+          public void remove () 
+          { 
+            iterator.remove();    // the head was the last value it returned
+          }
+        };
+
+        Object[] args = new Object[inputs + 1];
+        args[0] = group.toParams(payload.script);
+        for (int i = 0; i < inputs - 1; i++) 
+          args[i + 1] = payload.script.newObject("EggBuffer", new Object[]{ buffers.get(i) });
+        args[inputs] = payload.script.newObject("EggIterator", new Object[]{ stream });
+        payload.script.dispatchMapReduce(payload.writer, payload.freduce, payload.thisObj, args, payload.keyout, payload.valueout);
+      } finally {
+        EggBuffer.closeFrom(payload.script, mark);
+      }
+      payload.latency.add(System.nanoTime() - start, group);
+    }
+
+    /** Reduce the keys until the task reaches its share of the limit */
+    public void run (Context context)
+      throws IOException, InterruptedException 
+    {
+      setup(context);
+      try {
+        while (!payload.full() && context.nextKey())
+          reduce(context.getCurrentKey(), context.getValues(), context);
+      } finally {
+        cleanup(context);
+      }
+    }
+  }
+
+  /** The partitioner class of a reduce-side join.  Partitions on the
+   *  key leaving out the tag of the input.
+   */
+  static class JoinPartitioner extends Partitioner<Tuple, Tuple>
+  {
+    public int getPartition (Tuple key, Tuple value, int partitions)
+    {
+      int hash = key.tuple.subList(0, key.tuple.size() - 1).hashCode();
+      return (hash & Integer.MAX_VALUE) % partitions;
+    }
+  }
+
+  /** The grouping comparator class of a reduce-side join.  Groups
+   *  the values of a key leaving out the tag of the input.
+   */
+  static class JoinComparator extends WritableComparator
+  {
+    JoinComparator ()
+    {
+      super(Tuple.class, true);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public int compare (WritableComparable a, WritableComparable b)
+    {
+      return ((Tuple) a).compareTo((Tuple) b, 1);
     }
   }
 }
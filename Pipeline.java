@@ -0,0 +1,276 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// hadoop classes
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+
+/** Class runs the input and output of a task on helper threads, so
+ *  that the thread running the Javascript functions does nothing
+ *  else.  A reader thread reads the task's records and decodes them
+ *  into strings and tuples, and a writer thread writes the task's
+ *  results to its context, where they are serialized.  Each helper
+ *  is connected to the task's thread by a ring of record batches,
+ *  passed back and forth over a pair of bounded queues, so the
+ *  threads meet once per batch rather than once per record and the
+ *  memory held is fixed.
+ */
+class Pipeline
+{
+  /* private static fields */
+
+  /** The records in a batch */
+  private static final int BATCH = 256;
+  /** The batches in a ring */
+  private static final int DEPTH = 4;
+
+  /* public static methods */
+
+  /** Decode a key or value read by a map task into the form passed to
+   *  the map classes.  Tuples are kept as tuples and anything else is
+   *  converted to a string.
+   *  @param o       The key or value
+   *  @param copy    Whether a tuple must be copied, as the reader reuses it
+   *  @return        The decoded key or value
+   */
+  public static Object decode (Object o, boolean copy)
+  {
+    if (o instanceof Tuple) {
+      if (!copy) return o;
+      Tuple t = new Tuple();
+      t.tuple.addAll(((Tuple) o).tuple);
+      return t;
+    }
+    return (o == null) ? null : o.toString();
+  }
+
+  /* inner classes */
+
+  /** A batch of records */
+  static class Batch
+  {
+    Object[] keys = new Object[BATCH];
+    Object[] values = new Object[BATCH];
+    int size;
+    /** Whether the batch is the last */
+    boolean last;
+  }
+
+  /** A ring of batches shared by the task's thread and a helper
+   *  thread.  Empty batches go one way and filled batches the other.
+   */
+  static abstract class Ring implements Runnable
+  {
+    protected ArrayBlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(DEPTH);
+    protected ArrayBlockingQueue<Batch> full = new ArrayBlockingQueue<Batch>(DEPTH);
+    protected Thread thread;
+    /** The error raised by the helper thread, if any */
+    protected volatile Throwable error;
+
+    Ring (String name)
+    {
+      for (int i = 0; i < DEPTH; i++) free.add(new Batch());
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+    }
+
+    /** Throw the error of the helper thread, if it raised one.
+     */
+    protected void check ()
+      throws IOException
+    {
+      if (error instanceof IOException) throw (IOException) error;
+      if (error != null) throw new IOException(error);
+    }
+  }
+
+  /** Reads the records of a map task on a helper thread.
+   */
+  static class Input extends Ring
+  {
+    private MapContext<?, ?, ?, ?> context;
+    private Batch batch;
+    private int next;
+
+    /** Start reading the task's records.
+     *  @param context The task context
+     *  @return        The new object
+     */
+    Input (MapContext<?, ?, ?, ?> context)
+    {
+      super("eggshell reader " + context.getTaskAttemptID());
+      this.context = context;
+      thread.start();
+    }
+
+    /** Move to the next record.
+     *  @return        Whether there is a record
+     */
+    boolean next ()
+      throws IOException, InterruptedException
+    {
+      while (batch == null || next == batch.size) {
+        if (batch != null) {
+          boolean last = batch.last;
+          free.put(batch);
+          batch = null;
+          if (last) {
+            check();
+            return false;
+          }
+        }
+        batch = full.take();
+        next = 0;
+      }
+      next++;
+      return true;
+    }
+
+    /** Get the key of the current record */
+    Object key ()
+    {
+      return batch.keys[next - 1];
+    }
+
+    /** Get the value of the current record */
+    Object value ()
+    {
+      return batch.values[next - 1];
+    }
+
+    /** Stop the reader thread, if it has not finished.
+     */
+    void close ()
+    {
+      thread.interrupt();
+    }
+
+    public void run ()
+    {
+      try {
+        boolean last = false;
+        while (!last) {
+          Batch b = free.take();
+          b.size = 0;
+          try {
+            while (b.size < BATCH && !(last = !context.nextKeyValue())) {
+              b.keys[b.size] = decode(context.getCurrentKey(), true);
+              b.values[b.size] = decode(context.getCurrentValue(), true);
+              b.size++;
+            }
+          } catch (Throwable e) {
+            error = e;
+            last = true;
+          }
+          b.last = last;
+          full.put(b);
+        }
+      } catch (InterruptedException e) {
+        // the task stopped reading
+      }
+    }
+  }
+
+  /** Writes the results of a task to its context on a helper thread.
+   *  The tuples written are copied, sketches and all, since the task
+   *  reuses them and may go on changing the sketches.
+   */
+  static class Output extends Ring
+  {
+    private TaskInputOutputContext<?, ?, Tuple, Tuple> context;
+    private Batch batch;
+    private boolean closed;
+
+    /** Start the writer thread.
+     *  @param context The task context
+     *  @return        The new object
+     */
+    Output (TaskInputOutputContext<?, ?, Tuple, Tuple> context)
+    {
+      super("eggshell writer " + context.getTaskAttemptID());
+      this.context = context;
+      thread.start();
+    }
+
+    /** Pass a record to the writer thread.
+     *  @param key     The key
+     *  @param value   The value
+     */
+    void write (Tuple key, Tuple value)
+      throws IOException, InterruptedException
+    {
+      if (batch == null) {
+        check();
+        batch = free.take();
+        batch.size = 0;
+      }
+      batch.keys[batch.size] = key.copy();
+      batch.values[batch.size] = value.copy();
+      if (++batch.size == BATCH) {
+        full.put(batch);
+        batch = null;
+      }
+    }
+
+    /** Pass the last records to the writer thread and wait for it to
+     *  write them.
+     */
+    void close ()
+      throws IOException, InterruptedException
+    {
+      if (closed) return;
+      closed = true;
+      if (batch == null) {
+        batch = free.take();
+        batch.size = 0;
+      }
+      batch.last = true;
+      full.put(batch);
+      batch = null;
+      thread.join();
+      check();
+    }
+
+    public void run ()
+    {
+      try {
+        boolean last = false;
+        while (!last) {
+          Batch b = full.take();
+          last = b.last;
+          try {
+            if (error == null) {
+              for (int i = 0; i < b.size; i++)
+                context.write((Tuple) b.keys[i], (Tuple) b.values[i]);
+            }
+          } catch (Throwable e) {
+            error = e;
+          }
+          for (int i = 0; i < b.size; i++) b.keys[i] = b.values[i] = null;
+          free.put(b);
+        }
+      } catch (InterruptedException e) {
+        // the task was stopped
+      }
+    }
+  }
+}
@@ -0,0 +1,341 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.debug.DebugFrame;
+import org.mozilla.javascript.debug.DebuggableScript;
+import org.mozilla.javascript.debug.Debugger;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+// hadoop classes
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.conf.Configuration;
+
+
+/** Class profiles the Javascript functions of a task by sampling.
+ *  Attached to the interpreter as its debugger, it keeps the stack of
+ *  functions being run and the line each is on, which costs a few
+ *  field writes per call and line.  A background thread looks at the
+ *  stack at a fixed interval and counts the line on top, its self
+ *  time, and each function on the stack, its total time.  Samples
+ *  taken while no function runs are counted as Java time.
+ *
+ *  Each task writes its counts to a file of the profile directory,
+ *  and the job runner merges the files into a report.
+ */
+class Profiler
+  implements Debugger, Runnable
+{
+  /* private static fields */
+
+  /** The name counted when no Javascript function is running */
+  private static final String JAVA = "(java)";
+  /** The number of profiles written by this JVM */
+  private static int written;
+
+  /* private fields */
+
+  /** The sampling interval in milliseconds */
+  private int interval;
+  /** The names of the functions on the stack */
+  private volatile String[] functions = new String[64];
+  /** The current line of each function on the stack */
+  private volatile int[] lines = new int[64];
+  /** The depth of the stack */
+  private volatile int depth;
+  /** The samples of each line */
+  private HashMap<String, Long> self = new HashMap<String, Long>();
+  /** The samples of each function */
+  private HashMap<String, Long> total = new HashMap<String, Long>();
+  /** The number of samples */
+  private long samples;
+  /** The sampling thread */
+  private Thread thread;
+  /** Whether sampling should stop */
+  private volatile boolean stopped;
+
+  /* constructors */
+
+  /** Create a profiler.
+   *  @param interval   The sampling interval in milliseconds
+   *  @return           The new object
+   */
+  public Profiler (int interval)
+  {
+    this.interval = Math.max(interval, 1);
+  }
+
+  /* public static methods */
+
+  /** Merge the profiles written by the tasks of a job into a report,
+   *  then delete them.
+   *  @param conf       The Hadoop configuration
+   *  @param dir        The profile directory
+   *  @param report     The path of the report to write
+   */
+  public static void report (Configuration conf, Path dir, Path report)
+    throws IOException
+  {
+    HashMap<String, Long> self = new HashMap<String, Long>();
+    HashMap<String, Long> total = new HashMap<String, Long>();
+    long samples = 0;
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) return;
+    for (FileStatus status : fs.listStatus(dir)) {
+      BufferedReader reader = new BufferedReader(
+        new InputStreamReader(fs.open(status.getPath()), "UTF-8"));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 2) continue;
+        long n = Long.parseLong(fields[1]);
+        if (fields[0].equals("samples")) samples += n;
+        else if (fields[0].equals("self")) add(self, fields[2], n);
+        else if (fields[0].equals("total")) add(total, fields[2], n);
+      }
+      reader.close();
+    }
+    PrintStream out = new PrintStream(report.getFileSystem(conf).create(report), false, "UTF-8");
+    out.println("samples " + samples);
+    out.println();
+    print(out, "self", self, samples);
+    out.println();
+    print(out, "total", total, samples);
+    out.close();
+    fs.delete(dir, true);
+  }
+
+  /* public methods */
+
+  /** Start sampling.
+   */
+  public void start ()
+  {
+    thread = new Thread(this, "eggshell profiler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stop sampling and write the samples to a new file of the profile
+   *  directory.
+   *  @param conf       The Hadoop configuration
+   *  @param dir        The profile directory
+   *  @param name       The name of the task
+   */
+  public void stop (Configuration conf, Path dir, String name)
+    throws IOException
+  {
+    stopped = true;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    int n;
+    synchronized (Profiler.class) { n = written++; }
+    Path path = new Path(dir, name + "." + n);
+    PrintStream out = new PrintStream(path.getFileSystem(conf).create(path), false, "UTF-8");
+    out.println("samples\t" + samples);
+    for (Map.Entry<String, Long> e : self.entrySet())
+      out.println("self\t" + e.getValue() + "\t" + e.getKey());
+    for (Map.Entry<String, Long> e : total.entrySet())
+      out.println("total\t" + e.getValue() + "\t" + e.getKey());
+    out.close();
+  }
+
+  /** Empty the stack of functions.  Called after each call into the
+   *  interpreter returns, since a generator leaves its frame on
+   *  yielding without exiting it.
+   */
+  public void unwind ()
+  {
+    depth = 0;
+  }
+
+  /** Take samples until stopped.
+   */
+  public void run ()
+  {
+    HashSet<String> seen = new HashSet<String>();
+    while (!stopped) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        break;
+      }
+      String[] f = functions;
+      int[] l = lines;
+      int d = Math.min(depth, Math.min(f.length, l.length));
+      samples++;
+      if (d == 0 || f[d - 1] == null) {
+        add(self, JAVA, 1);
+        add(total, JAVA, 1);
+        continue;
+      }
+      add(self, f[d - 1] + ":" + l[d - 1], 1);
+      seen.clear();
+      for (int i = 0; i < d; i++) {
+        if (f[i] != null && seen.add(f[i])) add(total, f[i], 1);
+      }
+    }
+  }
+
+  /** Implements the Debugger interface, nothing is done when a script
+   *  is compiled.
+   */
+  public void handleCompilationDone (Context cx, DebuggableScript fnOrScript, String source)
+  {
+  }
+
+  /** Implements the Debugger interface, returning the frame that
+   *  tracks a call of a function.
+   *  @param cx          The Javascript context
+   *  @param fnOrScript  The function or script being called
+   *  @return            The frame
+   */
+  public DebugFrame getFrame (Context cx, DebuggableScript fnOrScript)
+  {
+    return new Frame(name(fnOrScript));
+  }
+
+  /* private methods */
+
+  /** Name a function by its name, or the line it starts on if it is
+   *  anonymous, and the file it came from.
+   *  @param fn         The function
+   *  @return           The name
+   */
+  private static String name (DebuggableScript fn)
+  {
+    String name = fn.getFunctionName();
+    if (!fn.isFunction()) name = "(script)";
+    else if (name == null || name.length() == 0) {
+      int first = Integer.MAX_VALUE;
+      for (int line : fn.getLineNumbers()) first = Math.min(first, line);
+      name = "(anonymous@" + (first == Integer.MAX_VALUE ? 0 : first) + ")";
+    }
+    return fn.getSourceName() + " " + name;
+  }
+
+  /** Add to the count of a name.
+   *  @param counts     The counts
+   *  @param name       The name
+   *  @param n          The amount to add
+   */
+  private static void add (HashMap<String, Long> counts, String name, long n)
+  {
+    Long c = counts.get(name);
+    counts.put(name, (c == null) ? n : c + n);
+  }
+
+  /** Print the counts largest first with their share of the samples.
+   *  @param out        The stream
+   *  @param title      The title of the counts
+   *  @param counts     The counts
+   *  @param samples    The number of samples
+   */
+  private static void print (PrintStream out, String title,
+                             HashMap<String, Long> counts, long samples)
+  {
+    ArrayList<Map.Entry<String, Long>> entries =
+      new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      public int compare (Map.Entry<String, Long> a, Map.Entry<String, Long> b)
+      {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    out.println(String.format("%10s %7s  %s", title, "%", "location"));
+    for (Map.Entry<String, Long> e : entries) {
+      double share = (samples > 0) ? 100.0 * e.getValue() / samples : 0;
+      out.println(String.format("%10d %6.2f%%  %s", e.getValue(), share, e.getKey()));
+    }
+  }
+
+  /** Push a function onto the stack.
+   *  @param name       The name of the function
+   *  @return           The position of the function on the stack
+   */
+  private int push (String name)
+  {
+    int d = depth;
+    if (d == functions.length) {
+      String[] f = new String[d * 2];
+      int[] l = new int[d * 2];
+      System.arraycopy(functions, 0, f, 0, d);
+      System.arraycopy(lines, 0, l, 0, d);
+      lines = l;
+      functions = f;
+    }
+    functions[d] = name;
+    lines[d] = 0;
+    depth = d + 1;
+    return d;
+  }
+
+  /** The frame of a function call.  Generators leave and reenter their
+   *  frame, so the frame pops the stack back to where it was pushed.
+   */
+  class Frame implements DebugFrame
+  {
+    private String name;
+    private int position;
+
+    Frame (String name)
+    {
+      this.name = name;
+    }
+
+    public void onEnter (Context cx, Scriptable activation, Scriptable thisObj, Object[] args)
+    {
+      position = push(name);
+    }
+
+    public void onLineChange (Context cx, int lineNumber)
+    {
+      if (position < depth) lines[position] = lineNumber;
+    }
+
+    public void onExceptionThrown (Context cx, Throwable ex)
+    {
+    }
+
+    public void onExit (Context cx, boolean byThrow, Object resultOrException)
+    {
+      if (position < depth) depth = position;
+    }
+
+    public void onDebuggerStatement (Context cx)
+    {
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// hadoop classes
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.ReflectionUtils;
+
+
+/** Input format sampling the input of a job for a fast approximate
+ *  run.  It wraps the job's real input format, keeping a fraction of
+ *  its splits, chosen by a seeded shuffle so a run can be repeated,
+ *  and a fraction of the records of each split, chosen by a random
+ *  generator seeded by the seed and the split.  A map task can also
+ *  stop reading early, once it has written its share of the job's
+ *  limit on output records, or once it has passed on a number of
+ *  records, when the records of the whole split are estimated from
+ *  the reader's progress.  The rates sampled are reported in the
+ *  "Eggshell Sampling" counter group, so totals can be scaled up.
+ */
+class Sample extends InputFormat<Object, Object>
+{
+  /* public static fields */
+
+  /** The counter group the sampling is reported under */
+  public static final String GROUP = "Eggshell Sampling";
+
+  /* private static fields */
+
+  /** The configuration properties passing the splits to the tasks */
+  private static final String TOTAL = "eggshell.sample.splits.total";
+  private static final String KEPT = "eggshell.sample.splits.kept";
+
+  /* public methods */
+
+  /** Get the splits of the real input format and keep a fraction of
+   *  them, at least one.  The splits kept stay in their order.
+   *  @param context     The job context
+   *  @return            The splits kept
+   */
+  public List<InputSplit> getSplits (JobContext context)
+    throws IOException, InterruptedException
+  {
+    Configuration conf = context.getConfiguration();
+    List<InputSplit> splits = input(conf).getSplits(context);
+    double fraction = conf.getFloat(Eggshell.SAMPLE_SPLITS, 1);
+    int kept = (int) Math.max(1, Math.round(fraction * splits.size()));
+    conf.setInt(TOTAL, splits.size());
+    if (kept < splits.size()) {
+      ArrayList<Integer> order = new ArrayList<Integer>();
+      for (int i = 0; i < splits.size(); i++) order.add(i);
+      Collections.shuffle(order, new Random(conf.getLong(Eggshell.SAMPLE_SEED, 0)));
+      order = new ArrayList<Integer>(order.subList(0, kept));
+      Collections.sort(order);
+      ArrayList<InputSplit> sample = new ArrayList<InputSplit>();
+      for (int i : order) sample.add(splits.get(i));
+      splits = sample;
+    }
+    conf.setInt(KEPT, splits.size());
+    return splits;
+  }
+
+  /** Create a reader sampling the records of the real input format.
+   *  @param split       The split to read
+   *  @param context     The task context
+   *  @return            The reader
+   */
+  @SuppressWarnings("unchecked")
+  public RecordReader<Object, Object> createRecordReader (InputSplit split,
+                                                         TaskAttemptContext context)
+    throws IOException, InterruptedException
+  {
+    Configuration conf = context.getConfiguration();
+    return new Reader(input(conf).createRecordReader(split, context));
+  }
+
+  /* public static methods */
+
+  /** Divide a limit on output records between the tasks of a job,
+   *  the first tasks taking the remainder.
+   *  @param limit       The limit, or 0 for none
+   *  @param tasks       The number of tasks
+   *  @param id          The number of the task
+   *  @return            The task's share, or -1 for no limit
+   */
+  public static long share (long limit, int tasks, int id)
+  {
+    if (limit <= 0) return -1;
+    tasks = Math.max(tasks, 1);
+    return limit / tasks + (id < limit % tasks ? 1 : 0);
+  }
+
+  /** Get a map task's share of the job's limit on output records,
+   *  the limit being divided between the splits kept.
+   *  @param context     The task context
+   *  @return            The task's share, or -1 for no limit
+   */
+  public static long share (TaskAttemptContext context)
+  {
+    Configuration conf = context.getConfiguration();
+    return share(conf.getLong(Eggshell.LIMIT, 0), conf.getInt(KEPT, 1),
+                 context.getTaskAttemptID().getTaskID().getId());
+  }
+
+  /* private static methods */
+
+  /** Create the real input format of the job.
+   *  @param conf        The Hadoop configuration
+   *  @return            The input format
+   */
+  @SuppressWarnings("unchecked")
+  private static InputFormat<Object, Object> input (Configuration conf)
+  {
+    Class<?> c = conf.getClass(Eggshell.SAMPLE_INPUT_FORMAT, null);
+    if (c == null) throw new IllegalStateException(Eggshell.SAMPLE_INPUT_FORMAT + " is not set");
+    return (InputFormat<Object, Object>) ReflectionUtils.newInstance(c, conf);
+  }
+
+  /* inner classes */
+
+  /** Reader passing on a fraction of the records of the real reader,
+   *  until the map task has written its share of the limit or the
+   *  reader has passed on the head of the split.
+   */
+  static class Reader extends RecordReader<Object, Object>
+  {
+    private RecordReader<Object, Object> reader;
+    private double fraction;
+    private Random random;
+    private long limit;
+    private boolean done;
+    private long head;
+    private long reads;
+    private long passed;
+    private Counter written;
+    private Counter read;
+    private Counter sampled;
+    private Counter stopped;
+    private Counter estimated;
+
+    Reader (RecordReader<Object, Object> reader)
+    {
+      this.reader = reader;
+    }
+
+    public void initialize (InputSplit split, TaskAttemptContext context)
+      throws IOException, InterruptedException
+    {
+      reader.initialize(split, context);
+      Configuration conf = context.getConfiguration();
+      fraction = conf.getFloat(Eggshell.SAMPLE_RECORDS, 1);
+      random = new Random(conf.getLong(Eggshell.SAMPLE_SEED, 0) * 31 + split.toString().hashCode());
+      int id = context.getTaskAttemptID().getTaskID().getId();
+      limit = share(context);
+      written = context.getCounter(TaskCounter.MAP_OUTPUT_RECORDS);
+      read = context.getCounter(GROUP, "READ_RECORDS");
+      sampled = context.getCounter(GROUP, "SAMPLED_RECORDS");
+      stopped = context.getCounter(GROUP, "LIMITED_TASKS");
+      head = conf.getLong(Eggshell.SAMPLE_HEAD, 0);
+      if (head > 0) estimated = context.getCounter(GROUP, "ESTIMATED_RECORDS");
+      context.getCounter(GROUP, "SAMPLED_SPLITS").increment(1);
+      if (id == 0)   // counted once per job
+        context.getCounter(GROUP, "TOTAL_SPLITS").increment(conf.getInt(TOTAL, 1));
+    }
+
+    public boolean nextKeyValue ()
+      throws IOException, InterruptedException
+    {
+      while (true) {
+        if (limit >= 0 && written.getValue() >= limit) {
+          if (!done) stopped.increment(1);
+          done = true;
+          return false;
+        }
+        if (head > 0 && passed >= head) {
+          float progress = reader.getProgress();
+          if (!done) estimated.increment(progress > 0 ? Math.round(reads / progress) : reads);
+          done = true;
+          return false;
+        }
+        if (!reader.nextKeyValue()) {
+          if (head > 0 && !done) estimated.increment(reads);
+          done = true;
+          return false;
+        }
+        reads++;
+        read.increment(1);
+        if (fraction >= 1 || random.nextDouble() < fraction) {
+          sampled.increment(1);
+          passed++;
+          return true;
+        }
+      }
+    }
+
+    public Object getCurrentKey ()
+      throws IOException, InterruptedException
+    {
+      return reader.getCurrentKey();
+    }
+
+    public Object getCurrentValue ()
+      throws IOException, InterruptedException
+    {
+      return reader.getCurrentValue();
+    }
+
+    public float getProgress ()
+      throws IOException, InterruptedException
+    {
+      return done ? 1 : reader.getProgress();
+    }
+
+    public void close ()
+      throws IOException
+    {
+      reader.close();
+    }
+  }
+}
@@ -20,7 +20,11 @@ along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
 import org.mozilla.javascript.*;
 
 import java.io.IOException;
+import java.net.URI;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // java stream reading classes
 import java.io.BufferedReader;
@@ -28,8 +32,10 @@ import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 
-// hadoop task context
+// hadoop task output
+import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 
 // hadoop filesystem classes
 import org.apache.hadoop.fs.Path;
@@ -41,18 +47,55 @@ import org.apache.hadoop.filecache.DistributedCache;
 
 
 /** Class that starts the javascript and handles the evaluation of
- *  scripts including those serialized over the distributed cache
+ *  scripts including those serialized over the distributed cache.
+ *  An interpreter belongs to the thread that started it, and is the
+ *  current interpreter of that thread until it exits, so tasks run in
+ *  threads of their own each have their own.
  */
 class Script
 {
+  /* private static fields */
+
+  /** The current interpreter of each thread */
+  private static final ThreadLocal<Script> current = new ThreadLocal<Script>();
+  /** The scripts compiled by this JVM from the distributed cache, by
+      source, the least recently used being dropped */
+  private static final LinkedHashMap<String, org.mozilla.javascript.Script> compiled =
+    new LinkedHashMap<String, org.mozilla.javascript.Script>(16, 0.75f, true) {
+      private static final long serialVersionUID = 5813264730861795312L;
+
+      protected boolean removeEldestEntry (Map.Entry<String, org.mozilla.javascript.Script> e)
+      {
+        return size() > 64;
+      }
+    };
+
+  /* public fields */
+
+  /** The time spent running the Javascript functions of a task */
+  public Metrics metrics = new Metrics();
+  /** The task whose functions the interpreter runs, null in the job runner */
+  public TaskInputOutputContext<?, ?, Tuple, Tuple> task;
+  /** The open value buffers created by the task, deleted when the reduce
+   *  call creating them returns or the task finishes */
+  public ArrayList<SpillBuffer> buffers = new ArrayList<SpillBuffer>();
+  /** The named outputs written by the task, created when first written */
+  public MultipleOutputs<Tuple, Tuple> outputs;
+
   /* private fields */
 
+  /** The interpreter that was current when this one started */
+  private Script outer;
+
   /** The global scope object */
   private Scriptable globalScope;
 
   /** The Javascript interpreter's context object */
   private Context cx;
 
+  /** The profiler attached to the interpreter, if any */
+  private Profiler profiler;
+
   /* constructors */
 
   /** Starts the javascript interpreter and defines the base classes
@@ -63,12 +106,16 @@ class Script
   public Script ()
     throws IOException
   {
+    outer = current.get();
+    current.set(this);
     try {
       cx = Context.enter();
       cx.setLanguageVersion(Context.VERSION_1_7);
       globalScope = cx.initStandardObjects();
       ScriptableObject.defineClass(globalScope, EggGlobal.class);
       ScriptableObject.defineClass(globalScope, EggIterator.class);
+      ScriptableObject.defineClass(globalScope, EggSketch.class);
+      ScriptableObject.defineClass(globalScope, EggBuffer.class);
       ScriptableObject.defineClass(globalScope, EggContext.class);
       ScriptableObject.defineClass(globalScope, Egg.class);
     } catch (Exception e) {
@@ -78,11 +125,27 @@ class Script
 
   /* public methods */
 
-  /** Exit the javascript interpreter
+  /** Exit the javascript interpreter, making the interpreter that was
+   *  current when it started current again.
    */
   public void exit ()
   {
-    cx.exit();
+    Context.exit();
+    current.set(outer);
+  }
+
+  /** Attach a profiler to the interpreter as its debugger.  Scripts
+   *  compiled from then on are interpreted rather than compiled to
+   *  Java classes, so the profiler sees each call and line of their
+   *  functions.
+   *  @param profiler The profiler
+   */
+  public void setProfiler (Profiler profiler)
+  {
+    this.profiler = profiler;
+    cx.setOptimizationLevel(-1);
+    cx.setGeneratingDebug(true);
+    cx.setDebugger(profiler, null);
   }
 
   /** Set the global scope.
@@ -161,7 +224,13 @@ class Script
     if (thisObj == null) thisObj = globalScope;
     Object ret;
     try {
-      ret = func.call(cx, thisObj.getParentScope(), thisObj, args);
+      if (profiler == null) 
+        ret = func.call(cx, thisObj.getParentScope(), thisObj, args);
+      else {
+        // interpreted generators can only be resumed within a top call
+        ret = ScriptRuntime.doTopCall(func, cx, thisObj.getParentScope(), thisObj, args);
+        profiler.unwind();
+      }
       if (ret instanceof Undefined) ret = null;
     } catch (JavaScriptException e) { 
       ret = null; 
@@ -176,7 +245,18 @@ class Script
    */
   public Object evalString (String buf)
   {
-    return cx.evaluateString(globalScope, buf, this.getClass().toString(), 1, null);
+    return evalString(buf, this.getClass().toString());
+  }
+
+  /** Evaluates the Javascript expression contained within a string,
+   *  performing the evaluation within the global scope.
+   *  @param buf        String to evaluate
+   *  @param source     The name of the source reported in errors
+   *  @return           The result of the Javascript evaluation
+   */
+  public Object evalString (String buf, String source)
+  {
+    return cx.evaluateString(globalScope, buf, source, 1, null);
   }
 
   /** Evaluates the Javascript expressions found in the eggshell
@@ -214,7 +294,10 @@ class Script
 
   /** Evaluates the Javascript expressions contained in a
    *  DataInputStream serialized file and passed over the distributed
-   *  cache.
+   *  cache.  The expressions are compiled once per JVM, so the tasks
+   *  of a job, and the rounds of an iterated job, run in the same JVM
+   *  do not compile the same functions again.  An interpreter with a
+   *  profiler attached compiles them itself.
    *  @param conf       The Hadoop configuration object
    *  @param pathString The path string of the cached file
    *  @param name       The name of the file added to the cache
@@ -236,7 +319,14 @@ class Script
     }
     String buf = in.readUTF();
     in.close();
-    return evalString(buf);
+    if (profiler != null) return evalString(buf, name);
+    org.mozilla.javascript.Script s;
+    synchronized (compiled) { s = compiled.get(buf); }
+    if (s == null) {
+      s = cx.compileString(buf, name, 1, null);
+      synchronized (compiled) { compiled.put(buf, s); }
+    }
+    return s.exec(cx, globalScope);
   }
 
   /** Call a map-reduce Javascript function, saving the result in
@@ -254,7 +344,10 @@ class Script
                                Tuple value)
     throws IOException
   {
+    long start = System.nanoTime();
     Object ret = callFunction(func, thisObj, args);
+    long called = System.nanoTime();
+    metrics.call += called - start;
 
     // handle generators
     if (ret == null || ret instanceof NativeGenerator) return ret;
@@ -262,9 +355,22 @@ class Script
     // handle a map-reduce result
     if (!(ret instanceof NativeArray)) throw new IOException();
     NativeArray array = (NativeArray) ret;
+    toTuples(array, key, value);
+    metrics.toTuple += System.nanoTime() - called;
+    return array;
+  }
 
+  /** Convert a map-reduce result, an array of the key followed by
+   *  the values, into key and value Tuples.  Elements that are arrays
+   *  are flattened into the Tuples.
+   *  @param array         The map-reduce result
+   *  @param key           The Tuple to fill with the key
+   *  @param value         The Tuple to fill with the values
+   */
+  public void toTuples (NativeArray array, Tuple key, Tuple value)
+  {
     key.clear();         // get the key Tuple and fill it
-    ret = array.get(0);
+    Object ret = array.get(0);
     if (!(ret instanceof NativeArray)) key.add(ret);
     else {
       NativeArray subarray = (NativeArray) ret;
@@ -280,18 +386,16 @@ class Script
         for (int i = 0; i < subarray.size(); i++) value.add(subarray.get(i));
       }
     }
-    return array;
   }
 
   /** Call the map-reduce Javascript function with the given
-   *  arguments.  Save the key-value result in the task's context
-   *  @param context   Task context
+   *  arguments.  Write the key-value result to the task's output
+   *  @param writer    Writer of the task's output
    *  @param script    The Javascript interpreter
    *  @param f         The map-reduce javascript object
    *  @param args      The key-value arguments
    */
-  @SuppressWarnings("unchecked")
-  public void dispatchMapReduce (TaskInputOutputContext context,
+  public void dispatchMapReduce (RecordWriter<Tuple, Tuple> writer,
                                  Function f,
                                  Scriptable thisObj,
                                  Object[] args,
@@ -302,11 +406,13 @@ class Script
     Object ret = callMapReduce(f, thisObj, args, key, value);
     if (ret instanceof NativeGenerator) {
       NativeGenerator gen = (NativeGenerator) ret;
-      Function next = (Function) gen.getProperty(gen, "next");
-      while (callMapReduce(next, gen, null, key, value) != null)
-        context.write(key, value);
+      Function next = (Function) ScriptableObject.getProperty(gen, "next");
+      while (callMapReduce(next, gen, null, key, value) != null) {
+        metrics.yields++;
+        writer.write(key, value);
+      }
     } else if (ret != null) {
-      context.write(key, value);
+      writer.write(key, value);
     }
   }
 
@@ -326,17 +432,17 @@ class Script
     FSDataOutputStream out = hdfs.create(path); // create the file
     String buf;
     if (!(o instanceof NativeObject)) {
-      buf = cx.toString(o); // serialize
+      buf = Context.toString(o); // serialize
       if (o instanceof NativeArray)  buf = "[" + buf + "]"; // if array
     }
     else {
       buf = "{";
       NativeObject obj = (NativeObject) o;
-      Object[] propIds = obj.getPropertyIds(obj);
+      Object[] propIds = ScriptableObject.getPropertyIds(obj);
       for(Object propId: propIds) {
         String key = propId.toString();
-        Object value = obj.getProperty(obj, key);
-        buf += key + ":" + cx.toString(value) + ",";
+        Object value = ScriptableObject.getProperty(obj, key);
+        buf += key + ":" + Context.toString(value) + ",";
       }
       buf += "}";
     }
@@ -352,17 +458,62 @@ class Script
    */
   public Object deserialize (Configuration conf, String file)
     throws IOException
+  {
+    Path path = findCache(conf, file);
+    return (path != null) ? evalCache(conf, path.toString(), file) : null;
+  }
+
+  /* public static methods */
+
+  /** Return the current interpreter of the thread.
+   *  @return        The interpreter, or null if none was started
+   */
+  public static Script current ()
+  {
+    return current.get();
+  }
+
+  /** Find the local copy of a file passed over the distributed cache.
+   *  @param conf    The Hadoop configuration
+   *  @param file    The name of the file added to the cache
+   *  @return        The local path of the file or null if not found
+   */
+  public static Path findCache (Configuration conf, String file)
+    throws IOException
   {
     Path [] cacheFiles = DistributedCache.getLocalCacheFiles(conf);
     if (null != cacheFiles && cacheFiles.length > 0) {
       for (Path path : cacheFiles) {        // loop through cache files
         if (path.getName().equals(file)) {  // find this file
-          return evalCache(conf, path.toString(), file);
+          return path;
         }
       }
     }
     return null;
   }
+
+  /** Find the local copy of a file passed over the distributed cache
+   *  by its original URI.  If the file was not copied, as when
+   *  running in standalone mode, the original path is returned.
+   *  @param conf    The Hadoop configuration
+   *  @param uri     The URI of the file added to the cache
+   *  @return        The qualified path of the file
+   */
+  @SuppressWarnings("deprecation")
+  public static Path findCache (Configuration conf, URI uri)
+    throws IOException
+  {
+    URI[] uris = DistributedCache.getCacheFiles(conf);
+    Path[] cacheFiles = DistributedCache.getLocalCacheFiles(conf);
+    if (uris != null && cacheFiles != null && uris.length == cacheFiles.length) {
+      FileSystem fs = FileSystem.getLocal(conf);
+      for (int i = 0; i < uris.length; i++) {
+        if (uris[i].equals(uri) && fs.exists(cacheFiles[i]))
+          return fs.makeQualified(cacheFiles[i]);
+      }
+    }
+    return new Path(uri);
+  }
 }
 
 
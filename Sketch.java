@@ -0,0 +1,511 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/** Class provides fixed-size summaries of a stream of values which
+ *  can be stored as an element of a Tuple and merged with another
+ *  summary of the same kind.  A HyperLogLog sketch estimates the
+ *  number of distinct values, a quantile sketch estimates quantiles
+ *  within a relative error, and a top-k sketch tracks the most
+ *  frequent values.
+ */
+abstract class Sketch
+{
+  /* public static fields */
+
+  /** The tags that represent the kinds of sketches */
+  public static final byte HLL = 1;
+  public static final byte QUANTILES = 2;
+  public static final byte TOPK = 3;
+
+  /* public static methods */
+
+  /** Create a sketch of the named kind.
+   *  @param kind    The kind: "hll", "quantiles" or "topk"
+   *  @param param   The precision of a HyperLogLog sketch, the
+   *                 relative error of a quantile sketch, or the
+   *                 number of values kept by a top-k sketch; zero
+   *                 for the default
+   *  @return        The new sketch
+   */
+  public static Sketch create (String kind, double param)
+  {
+    if (kind.equals("hll"))
+      return new HyperLogLog(param > 0 ? (int) param : 12);
+    if (kind.equals("quantiles"))
+      return new Quantiles(param > 0 ? param : 0.01);
+    if (kind.equals("topk"))
+      return new TopK(param > 0 ? (int) param : 64);
+    throw new IllegalArgumentException("unknown sketch: " + kind);
+  }
+
+  /** Read a sketch written by the write method.
+   *  @param in      The input data stream
+   *  @return        The sketch
+   */
+  public static Sketch read (DataInput in)
+    throws IOException
+  {
+    Sketch sketch;
+    byte kind = in.readByte();
+    if (kind == HLL) sketch = new HyperLogLog(4);
+    else if (kind == QUANTILES) sketch = new Quantiles(0.01);
+    else if (kind == TOPK) sketch = new TopK(1);
+    else throw new IOException("unknown sketch " + kind);
+    sketch.readFields(in);
+    return sketch;
+  }
+
+  /** Hash a value with 64-bit FNV-1a followed by a mixing step.
+   *  @param o       The value
+   *  @return        The hash
+   */
+  public static long hash (Object o)
+  {
+    long h = 0xcbf29ce484222325L;
+    if (o instanceof Double) {
+      long bits = Double.doubleToLongBits((Double) o);
+      for (int i = 0; i < 64; i += 8) h = (h ^ ((bits >>> i) & 0xff)) * 0x100000001b3L;
+    } else {
+      String s = String.valueOf(o);
+      for (int i = 0; i < s.length(); i++) h = (h ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /* public methods */
+
+  /** Add a value to the sketch.
+   *  @param o       The value
+   */
+  public abstract void add (Object o);
+
+  /** Merge another sketch of the same kind into this one.
+   *  @param that    The other sketch
+   *  @throws IOException if the sketches are of different kinds or
+   *  parameters
+   */
+  public abstract void merge (Sketch that)
+    throws IOException;
+
+  /** Return the kind of the sketch, as passed to the create method.
+   *  @return        The kind
+   */
+  public abstract String kind ();
+
+  /** Return the main estimate of the sketch: the number of distinct
+   *  values for a HyperLogLog sketch, or the number of values added
+   *  for the others.
+   *  @return        The estimate
+   */
+  public abstract double estimate ();
+
+  /** Write the sketch, starting with the tag of its kind.
+   *  @param out     The output data stream
+   */
+  public abstract void write (DataOutput out)
+    throws IOException;
+
+  /** Read the sketch, after the tag of its kind.
+   *  @param in      The input data stream
+   */
+  protected abstract void readFields (DataInput in)
+    throws IOException;
+
+  /** Convert the sketch to a string showing its estimate.
+   *  @return        The string
+   */
+  @Override
+  public String toString ()
+  {
+    double d = estimate();
+    return (d == Math.floor(d)) ? Long.toString((long) d) : Double.toString(d);
+  }
+
+  /* protected methods */
+
+  /** Check that another sketch is of the same kind as this one.
+   *  @param that    The other sketch
+   *  @throws IOException if it is not
+   */
+  protected void checkKind (Sketch that)
+    throws IOException
+  {
+    if (that.getClass() != getClass())
+      throw new IOException("cannot merge a " + that.kind() + " sketch into a " + kind() + " sketch");
+  }
+
+  /** Class provides a HyperLogLog sketch, which estimates the number
+   *  of distinct values with a standard error of 1.04 / sqrt(2^p)
+   *  using 2^p one-byte registers.
+   */
+  static class HyperLogLog extends Sketch
+  {
+    private byte[] registers;
+
+    HyperLogLog (int p)
+    {
+      registers = new byte[1 << Math.min(Math.max(p, 4), 18)];
+    }
+
+    public void add (Object o)
+    {
+      long h = hash(o);
+      int p = Integer.numberOfTrailingZeros(registers.length);
+      int i = (int) (h >>> (64 - p));
+      byte rank = (byte) (Long.numberOfLeadingZeros((h << p) | (1L << (p - 1))) + 1);
+      if (rank > registers[i]) registers[i] = rank;
+    }
+
+    public void merge (Sketch that)
+      throws IOException
+    {
+      checkKind(that);
+      byte[] r = ((HyperLogLog) that).registers;
+      if (r.length != registers.length)
+        throw new IOException("HyperLogLog precisions differ");
+      for (int i = 0; i < r.length; i++)
+        if (r[i] > registers[i]) registers[i] = r[i];
+    }
+
+    public double estimate ()
+    {
+      int m = registers.length, zeros = 0;
+      double sum = 0;
+      for (byte r : registers) {
+        sum += 1.0 / (1L << r);
+        if (r == 0) zeros++;
+      }
+      double alpha = 0.7213 / (1 + 1.079 / m);
+      double e = alpha * m * m / sum;
+      if (e <= 2.5 * m && zeros > 0) e = m * Math.log((double) m / zeros);
+      return Math.round(e);
+    }
+
+    public String kind ()
+    {
+      return "hll";
+    }
+
+    public void write (DataOutput out)
+      throws IOException
+    {
+      out.writeByte(HLL);
+      out.writeInt(registers.length);
+      out.write(registers);
+    }
+
+    protected void readFields (DataInput in)
+      throws IOException
+    {
+      registers = new byte[in.readInt()];
+      in.readFully(registers);
+    }
+  }
+
+  /** Class provides a quantile sketch which keeps counts of values in
+   *  logarithmic buckets, so each estimate is within a relative error
+   *  of the true quantile.  When there are too many buckets, the ones
+   *  nearest zero are collapsed together.
+   */
+  static class Quantiles extends Sketch
+  {
+    private static final int MAX_BUCKETS = 2048;
+    private double error;
+    private double gamma;
+    private long zeros;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private TreeMap<Integer, Long> positive = new TreeMap<Integer, Long>();
+    private TreeMap<Integer, Long> negative = new TreeMap<Integer, Long>();
+
+    Quantiles (double error)
+    {
+      this.error = error;
+      gamma = (1 + error) / (1 - error);
+    }
+
+    public void add (Object o)
+    {
+      double d = (o instanceof Double) ? (Double) o : Double.parseDouble(String.valueOf(o));
+      if (Double.isNaN(d)) return;
+      count++;
+      min = Math.min(min, d);
+      max = Math.max(max, d);
+      if (Math.abs(d) < 1e-9) zeros++;
+      else increment(d > 0 ? positive : negative, index(Math.abs(d)), 1);
+    }
+
+    public void merge (Sketch that)
+      throws IOException
+    {
+      checkKind(that);
+      Quantiles q = (Quantiles) that;
+      if (q.error != error)
+        throw new IOException("quantile sketch errors differ");
+      count += q.count;
+      zeros += q.zeros;
+      min = Math.min(min, q.min);
+      max = Math.max(max, q.max);
+      for (Map.Entry<Integer, Long> e : q.positive.entrySet())
+        increment(positive, e.getKey(), e.getValue());
+      for (Map.Entry<Integer, Long> e : q.negative.entrySet())
+        increment(negative, e.getKey(), e.getValue());
+    }
+
+    public double estimate ()
+    {
+      return count;
+    }
+
+    public String kind ()
+    {
+      return "quantiles";
+    }
+
+    /** Estimate a quantile of the values added.
+     *  @param q       The quantile between 0 and 1
+     *  @return        The estimate
+     */
+    public double quantile (double q)
+    {
+      if (count == 0) return Double.NaN;
+      double rank = Math.max(0, Math.min(1, q)) * (count - 1);
+      long seen = 0;
+      for (Map.Entry<Integer, Long> e : negative.descendingMap().entrySet()) {
+        seen += e.getValue();
+        if (seen > rank) return clamp(-value(e.getKey()));
+      }
+      seen += zeros;
+      if (seen > rank) return clamp(0);
+      for (Map.Entry<Integer, Long> e : positive.entrySet()) {
+        seen += e.getValue();
+        if (seen > rank) return clamp(value(e.getKey()));
+      }
+      return max;
+    }
+
+    public void write (DataOutput out)
+      throws IOException
+    {
+      out.writeByte(QUANTILES);
+      out.writeDouble(error);
+      out.writeLong(count);
+      out.writeLong(zeros);
+      out.writeDouble(min);
+      out.writeDouble(max);
+      write(out, positive);
+      write(out, negative);
+    }
+
+    protected void readFields (DataInput in)
+      throws IOException
+    {
+      error = in.readDouble();
+      gamma = (1 + error) / (1 - error);
+      count = in.readLong();
+      zeros = in.readLong();
+      min = in.readDouble();
+      max = in.readDouble();
+      read(in, positive);
+      read(in, negative);
+    }
+
+    private static void write (DataOutput out, TreeMap<Integer, Long> buckets)
+      throws IOException
+    {
+      out.writeInt(buckets.size());
+      for (Map.Entry<Integer, Long> e : buckets.entrySet()) {
+        out.writeInt(e.getKey());
+        out.writeLong(e.getValue());
+      }
+    }
+
+    private static void read (DataInput in, TreeMap<Integer, Long> buckets)
+      throws IOException
+    {
+      buckets.clear();
+      for (int n = in.readInt(); n > 0; n--) buckets.put(in.readInt(), in.readLong());
+    }
+
+    private int index (double d)
+    {
+      return (int) Math.ceil(Math.log(d) / Math.log(gamma));
+    }
+
+    private double value (int index)
+    {
+      return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    private double clamp (double d)
+    {
+      return Math.max(min, Math.min(max, d));
+    }
+
+    private void increment (TreeMap<Integer, Long> buckets, int index, long n)
+    {
+      Long c = buckets.get(index);
+      buckets.put(index, c == null ? n : c + n);
+      while (positive.size() + negative.size() > MAX_BUCKETS) {
+        TreeMap<Integer, Long> b = (positive.size() > 1) ? positive : negative;
+        Map.Entry<Integer, Long> first = b.pollFirstEntry();
+        Map.Entry<Integer, Long> second = b.firstEntry();
+        b.put(second.getKey(), second.getValue() + first.getValue());
+      }
+    }
+  }
+
+  /** Class provides a top-k sketch using the Misra-Gries summary.  Up
+   *  to k values are counted.  When another value arrives, all counts
+   *  are decreased instead, so any value occurring more than n / (k +
+   *  1) times in n values is kept, its count underestimated by at
+   *  most that much.
+   */
+  static class TopK extends Sketch
+  {
+    private int k;
+    private long count;
+    private HashMap<Object, Long> counters = new HashMap<Object, Long>();
+
+    TopK (int k)
+    {
+      this.k = k;
+    }
+
+    public void add (Object o)
+    {
+      count++;
+      Long c = counters.get(o);
+      if (c != null) counters.put(o, c + 1);
+      else if (counters.size() < k) counters.put(o, 1L);
+      else decrease(1);
+    }
+
+    /** Return the count kept for a value, an underestimate of how
+     *  many times it was added.
+     *  @param o       The value
+     *  @return        The count, zero if the value is not kept
+     */
+    public long frequency (Object o)
+    {
+      Long c = counters.get(o);
+      return (c == null) ? 0 : c;
+    }
+
+    public void merge (Sketch that)
+      throws IOException
+    {
+      checkKind(that);
+      TopK t = (TopK) that;
+      if (t.k != k)
+        throw new IOException("top-k sketch sizes differ");
+      count += t.count;
+      for (Map.Entry<Object, Long> e : t.counters.entrySet()) {
+        Long c = counters.get(e.getKey());
+        counters.put(e.getKey(), c == null ? e.getValue() : c + e.getValue());
+      }
+      if (counters.size() > k) {
+        ArrayList<Long> counts = new ArrayList<Long>(counters.values());
+        Collections.sort(counts, Collections.reverseOrder());
+        decrease(counts.get(k));
+      }
+    }
+
+    public double estimate ()
+    {
+      return count;
+    }
+
+    public String kind ()
+    {
+      return "topk";
+    }
+
+    /** Return the most frequent values with their estimated counts.
+     *  @param n       The number of values to return
+     *  @return        The values and counts, most frequent first
+     */
+    public ArrayList<Object[]> top (int n)
+    {
+      ArrayList<Map.Entry<Object, Long>> entries =
+        new ArrayList<Map.Entry<Object, Long>>(counters.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<Object, Long>>() {
+        public int compare (Map.Entry<Object, Long> a, Map.Entry<Object, Long> b)
+        {
+          return b.getValue().compareTo(a.getValue());
+        }
+      });
+      ArrayList<Object[]> list = new ArrayList<Object[]>();
+      for (int i = 0; i < n && i < entries.size(); i++) {
+        Map.Entry<Object, Long> e = entries.get(i);
+        list.add(new Object[]{ e.getKey(), new Double(e.getValue()) });
+      }
+      return list;
+    }
+
+    public void write (DataOutput out)
+      throws IOException
+    {
+      out.writeByte(TOPK);
+      out.writeInt(k);
+      out.writeLong(count);
+      Tuple values = new Tuple();
+      for (Object o : counters.keySet()) values.add(o);
+      values.write(out);
+      for (Object o : values.tuple) out.writeLong(counters.get(o));
+    }
+
+    protected void readFields (DataInput in)
+      throws IOException
+    {
+      k = in.readInt();
+      count = in.readLong();
+      Tuple values = new Tuple();
+      values.readFields(in);
+      counters.clear();
+      for (Object o : values.tuple) counters.put(o, in.readLong());
+    }
+
+    private void decrease (long n)
+    {
+      ArrayList<Object> gone = new ArrayList<Object>();
+      for (Map.Entry<Object, Long> e : counters.entrySet()) {
+        if (e.getValue() <= n) gone.add(e.getKey());
+        else e.setValue(e.getValue() - n);
+      }
+      for (Object o : gone) counters.remove(o);
+    }
+  }
+}
@@ -0,0 +1,411 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+// hadoop classes
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+
+/** Class provides a buffer of Tuples that can be iterated over any
+ *  number of times.  Tuples are kept serialized in memory until the
+ *  buffer passes its memory limit, after which they are spilled in
+ *  runs to local temporary files.  Sorting the buffer sorts each run
+ *  on its own and then merges the runs into one, so at most a run's
+ *  worth of tuples is ever deserialized at once.
+ */
+class SpillBuffer
+  implements Iterable<Tuple>
+{
+  /* private fields */
+
+  /** The number of serialized bytes kept in memory before spilling */
+  private long limit;
+  /** The serialized tuples kept in memory */
+  private DataOutputBuffer memory = new DataOutputBuffer();
+  /** The number of tuples kept in memory */
+  private long records;
+  /** The spilled runs, in the order they were written */
+  private ArrayList<Run> runs = new ArrayList<Run>();
+  /** The total number of tuples */
+  private long size;
+
+  /* constructors */
+
+  /** Create an empty buffer.
+   *  @param limit   The number of bytes to keep in memory
+   *  @return        The new object
+   */
+  public SpillBuffer (long limit)
+  {
+    this.limit = Math.max(limit, 1);
+  }
+
+  /* public methods */
+
+  /** Add a tuple to the end of the buffer.
+   *  @param value   The tuple
+   */
+  public void add (Tuple value)
+    throws IOException
+  {
+    value.write(memory);
+    records++;
+    size++;
+    if (memory.getLength() >= limit) spill();
+  }
+
+  /** Return the number of tuples in the buffer.
+   *  @return        The number of tuples
+   */
+  public long size ()
+  {
+    return size;
+  }
+
+  /** Return the number of runs spilled to disk.
+   *  @return        The number of runs
+   */
+  public int spills ()
+  {
+    return runs.size();
+  }
+
+  /** Sort the tuples of the buffer.
+   *  @param unique  Whether to drop all but the first of equal tuples
+   */
+  public void sort (boolean unique)
+    throws IOException
+  {
+    if (runs.isEmpty()) {
+      ArrayList<Tuple> list = sorted(read(), unique);
+      memory.reset();
+      for (Tuple value : list) value.write(memory);
+      records = size = list.size();
+      return;
+    }
+    spill();
+    for (Run run : runs) {
+      ArrayList<Tuple> list = sorted(run.iterator(), unique);
+      DataOutputStream out = run.create();
+      for (Tuple value : list) value.write(out);
+      out.close();
+      run.count = list.size();
+    }
+
+    // merge the sorted runs into one
+    Iterator<Tuple> merged = new Merge(runs, unique);
+    Run run = new Run();
+    DataOutputStream out = run.create();
+    while (merged.hasNext()) {
+      merged.next().write(out);
+      run.count++;
+    }
+    out.close();
+    close();
+    runs.add(run);
+    size = run.count;
+  }
+
+  /** Return an iterator over the tuples of the buffer.  The buffer
+   *  should not be added to while it is being iterated over.
+   *  @return        The iterator
+   */
+  public Iterator<Tuple> iterator ()
+  {
+    final Iterator<Run> spilled = runs.iterator();
+    final Reader unspilled = read();
+    return new Iterator<Tuple>() {
+      private Iterator<Tuple> current = null;
+
+      public boolean hasNext ()
+      {
+        while (current == null || !current.hasNext()) {
+          if (spilled.hasNext()) current = spilled.next().iterator();
+          else if (current != unspilled) current = unspilled;
+          else return false;
+        }
+        return true;
+      }
+
+      public Tuple next ()
+      {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+      }
+
+      public void remove ()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /** Delete the spilled runs and empty the buffer, dropping the
+   *  memory it held.
+   */
+  public void close ()
+  {
+    for (Run run : runs) run.file.delete();
+    runs.clear();
+    memory = new DataOutputBuffer();
+    records = size = 0;
+  }
+
+  /* private methods */
+
+  /** Write the tuples kept in memory to a new run.
+   */
+  private void spill ()
+    throws IOException
+  {
+    if (records == 0) return;
+    Run run = new Run();
+    DataOutputStream out = run.create();
+    out.write(memory.getData(), 0, memory.getLength());
+    out.close();
+    run.count = records;
+    runs.add(run);
+    memory.reset();
+    records = 0;
+  }
+
+  /** Return an iterator over the tuples kept in memory.
+   *  @return        The iterator
+   */
+  private Reader read ()
+  {
+    return new Reader(memory.getData(), memory.getLength(), records);
+  }
+
+  /** Read the tuples of an iterator into a sorted list.
+   *  @param values  The iterator
+   *  @param unique  Whether to drop all but the first of equal tuples
+   *  @return        The sorted list
+   */
+  private static ArrayList<Tuple> sorted (Iterator<Tuple> values, boolean unique)
+  {
+    ArrayList<Tuple> list = new ArrayList<Tuple>();
+    while (values.hasNext()) list.add(values.next());
+    Collections.sort(list);    // stable, so the first of equals stays first
+    if (unique) {
+      ArrayList<Tuple> distinct = new ArrayList<Tuple>();
+      for (Tuple value : list) {
+        if (distinct.isEmpty() || distinct.get(distinct.size() - 1).compareTo(value) != 0)
+          distinct.add(value);
+      }
+      list = distinct;
+    }
+    return list;
+  }
+
+  /** Class that iterates over a number of serialized tuples.
+   */
+  static class Reader implements Iterator<Tuple>
+  {
+    private DataInputBuffer in = new DataInputBuffer();
+    private long count;
+    private long read;
+
+    /** Create an iterator over serialized tuples in memory.
+     *  @param data    The bytes
+     *  @param length  The number of bytes
+     *  @param count   The number of tuples
+     *  @return        The new object
+     */
+    public Reader (byte[] data, int length, long count)
+    {
+      in.reset(data, length);
+      this.count = count;
+    }
+
+    public boolean hasNext ()
+    {
+      return read < count;
+    }
+
+    public Tuple next ()
+    {
+      if (!hasNext()) throw new NoSuchElementException();
+      Tuple value = new Tuple();
+      try {
+        value.readFields(in);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      read++;
+      return value;
+    }
+
+    public void remove ()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /** Class that holds a run of tuples spilled to a local file.
+   */
+  static class Run
+  {
+    private File file;
+    private long count;
+
+    /** Open the file of the run for writing, creating it if needed.
+     *  @return        The output stream
+     */
+    public DataOutputStream create ()
+      throws IOException
+    {
+      if (file == null) {
+        file = File.createTempFile("eggshell", ".spill");
+        file.deleteOnExit();
+      }
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /** Return an iterator over the tuples of the run.  The file is
+     *  closed once the last tuple is read.
+     *  @return        The iterator
+     */
+    public Iterator<Tuple> iterator ()
+    {
+      final DataInputStream in;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return new Iterator<Tuple>() {
+        private long read = 0;
+
+        public boolean hasNext ()
+        {
+          return read < count;
+        }
+
+        public Tuple next ()
+        {
+          if (!hasNext()) throw new NoSuchElementException();
+          Tuple value = new Tuple();
+          try {
+            value.readFields(in);
+            if (++read == count) in.close();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          return value;
+        }
+
+        public void remove ()
+        {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /** Class that merges sorted runs into one sorted iterator.
+   */
+  static class Merge implements Iterator<Tuple>
+  {
+    private PriorityQueue<Head> heads;
+    private Tuple last;
+    private boolean unique;
+
+    /** Create an iterator merging the sorted runs.
+     *  @param runs    The runs
+     *  @param unique  Whether to drop all but the first of equal tuples
+     *  @return        The new object
+     */
+    public Merge (ArrayList<Run> runs, boolean unique)
+    {
+      this.unique = unique;
+      heads = new PriorityQueue<Head>(Math.max(runs.size(), 1), new Comparator<Head>() {
+        public int compare (Head a, Head b)
+        {
+          int cmp = a.value.compareTo(b.value);
+          return (cmp != 0) ? cmp : (a.order < b.order ? -1 : (a.order == b.order ? 0 : 1));
+        }
+      });
+      for (int i = 0; i < runs.size(); i++) {
+        Head head = new Head(runs.get(i).iterator(), i);
+        if (head.advance()) heads.add(head);
+      }
+    }
+
+    public boolean hasNext ()
+    {
+      if (unique) {
+        while (!heads.isEmpty() && last != null && heads.peek().value.compareTo(last) == 0) {
+          Head head = heads.poll();
+          if (head.advance()) heads.add(head);
+        }
+      }
+      return !heads.isEmpty();
+    }
+
+    public Tuple next ()
+    {
+      if (!hasNext()) throw new NoSuchElementException();
+      Head head = heads.poll();
+      last = head.value;
+      if (head.advance()) heads.add(head);
+      return last;
+    }
+
+    public void remove ()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    /** The next tuple of a run being merged */
+    static class Head
+    {
+      private Iterator<Tuple> iterator;
+      private int order;
+      private Tuple value;
+
+      Head (Iterator<Tuple> iterator, int order)
+      {
+        this.iterator = iterator;
+        this.order = order;
+      }
+
+      boolean advance ()
+      {
+        if (!iterator.hasNext()) return false;
+        value = iterator.next();
+        return true;
+      }
+    }
+  }
+}
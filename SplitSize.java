@@ -0,0 +1,130 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+
+// hadoop classes
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+
+/** Class sizes the input splits of a job by the cost of its map
+ *  function, so that its map tasks take about the same time whatever
+ *  the cost per byte of the script.  The cost is the time the map
+ *  tasks spend in their Javascript functions per byte of input, as
+ *  counted under MAP_NANOS in the "Eggshell Timing" counter group.
+ *  A job sized by its cost keeps the cost measured by its run in its
+ *  output directory, for the next run to use.
+ */
+class SplitSize
+{
+  /* public static fields */
+
+  /** The name of the file of the output directory holding the cost */
+  public static final String FILE = "_eggshell.cost";
+
+  /* private static fields */
+
+  /** The smallest split made */
+  private static final long MINIMUM = 1 << 20;
+
+  /* public static methods */
+
+  /** Get the bytes of the input files of a job.
+   *  @param job     The job
+   *  @return        The bytes
+   */
+  public static long inputBytes (Job job)
+    throws IOException
+  {
+    Configuration cf = job.getConfiguration();
+    long bytes = 0;
+    for (Path input : FileInputFormat.getInputPaths(job)) {
+      FileSystem fs = input.getFileSystem(cf);
+      for (Path file : TupleReader.list(fs, input))
+        bytes += fs.getFileStatus(file).getLen();
+    }
+    return bytes;
+  }
+
+  /** Measure the cost of the input of a finished job.
+   *  @param job      The job
+   *  @param counters The counters of the job
+   *  @param rate     The fraction of its input the job read
+   *  @return         Nanoseconds per input byte, or 0 if not measured
+   */
+  public static double measure (Job job, Counters counters, double rate)
+    throws IOException
+  {
+    double nanos = counters.findCounter(Metrics.GROUP, "MAP_NANOS").getValue();
+    double bytes = inputBytes(job) * rate;
+    return (nanos > 0 && bytes > 0) ? nanos / bytes : 0;
+  }
+
+  /** Set the split size of a job for map tasks of a number of
+   *  seconds, splitting files smaller or larger than the block size.
+   *  @param job      The job
+   *  @param seconds  The seconds a map task should take
+   *  @param nanos    The nanoseconds taken per input byte
+   *  @return         The split size
+   */
+  public static long apply (Job job, double seconds, double nanos)
+  {
+    long size = (long) Math.max(MINIMUM, Math.min(seconds * 1e9 / nanos, Long.MAX_VALUE));
+    FileInputFormat.setMinInputSplitSize(job, size);
+    FileInputFormat.setMaxInputSplitSize(job, size);
+    return size;
+  }
+
+  /** Read the cost kept in an output directory.
+   *  @param conf    The Hadoop configuration
+   *  @param output  The output directory
+   *  @return        Nanoseconds per input byte, or 0 if there is none
+   */
+  public static double read (Configuration conf, Path output)
+    throws IOException
+  {
+    Path path = new Path(output, FILE);
+    FileSystem fs = path.getFileSystem(conf);
+    if (!fs.exists(path)) return 0;
+    FSDataInputStream in = fs.open(path);
+    double nanos = in.readDouble();
+    in.close();
+    return nanos;
+  }
+
+  /** Keep the cost in an output directory.
+   *  @param conf    The Hadoop configuration
+   *  @param output  The output directory
+   *  @param nanos   Nanoseconds per input byte
+   */
+  public static void write (Configuration conf, Path output, double nanos)
+    throws IOException
+  {
+    Path path = new Path(output, FILE);
+    FSDataOutputStream out = path.getFileSystem(conf).create(path);
+    out.writeDouble(nanos);
+    out.close();
+  }
+}
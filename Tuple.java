@@ -24,6 +24,8 @@ import java.io.IOException;
 // custom writable
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import java.util.ArrayList;
 import java.io.DataOutput;
 import java.io.DataInput;
@@ -44,6 +46,7 @@ class Tuple
   private static final byte E00 = 0;
   private static final byte DOUBLE = 1;
   private static final byte STRING = 2;
+  private static final byte SKETCH = 5;
   private static final byte BOOLEAN = 8;
 
   /** The internal data structure that holds the tuple */
@@ -79,6 +82,9 @@ class Tuple
       } else if (ret instanceof String) {
         out.writeByte(STRING);
         out.writeUTF((String) ret);
+      } else if (ret instanceof Sketch) {
+        out.writeByte(SKETCH);
+        ((Sketch) ret).write(out);
       } else {
         out.writeByte(STRING);
         out.writeUTF(ret.toString());
@@ -100,6 +106,7 @@ class Tuple
       if (key == DOUBLE) tuple.add(in.readDouble());
       if (key == STRING) tuple.add(in.readUTF());
       if (key == BOOLEAN) tuple.add(in.readBoolean());
+      if (key == SKETCH) tuple.add(Sketch.read(in));
     }
   }
 
@@ -130,8 +137,18 @@ class Tuple
   @Override
   public int compareTo (Tuple that) 
   {
-    int x = this.tuple.size();
-    int y = that.tuple.size();
+    return compareTo(that, 0);
+  }
+
+  /** Compare the tuples leaving out their trailing elements.
+   *  @param that    The tuple to compare with
+   *  @param drop    The number of trailing elements to leave out
+   *  @return        The comparison result
+   */
+  public int compareTo (Tuple that, int drop) 
+  {
+    int x = this.tuple.size() - drop;
+    int y = that.tuple.size() - drop;
 
     for (int i = 0; i < x && i < y; i++) {
       int cmp;
@@ -203,9 +220,68 @@ class Tuple
 
     // supported objects
     if (o instanceof String) add((String) o);
+    else if (o instanceof CharSequence) add(o.toString());  // concatenations
     if (o instanceof Double) add((Double) o);
     if (o instanceof Integer) add(new Double((Integer) o));
     if (o instanceof Boolean) add((Boolean) o);
+    if (o instanceof EggSketch) o = ((EggSketch) o).getSketch();
+    if (o instanceof Sketch) tuple.add(o);
+  }
+
+  /** Add a supported Javascript object to the tuple.  If the object
+   *  is an array, add each of its elements instead.
+   *  @param o    The object or array of objects
+   */
+  public void addAll (Object o)
+  {
+    if (!(o instanceof NativeArray)) add(o);
+    else {
+      NativeArray array = (NativeArray) o;
+      for (int i = 0; i < array.size(); i++) add(array.get(i));
+    }
+  }
+
+  /** Merge another tuple into this one element by element.  Sketches
+   *  are merged and numbers are summed, while other elements are left
+   *  as they are.
+   *  @param that    The other tuple
+   *  @throws IOException if two sketches cannot be merged
+   */
+  public void merge (Tuple that)
+    throws IOException
+  {
+    for (int i = 0; i < tuple.size() && i < that.tuple.size(); i++) {
+      Object a = tuple.get(i);
+      Object b = that.tuple.get(i);
+      if (a instanceof Sketch && b instanceof Sketch) 
+        ((Sketch) a).merge((Sketch) b);
+      else if (a instanceof Double && b instanceof Double)
+        tuple.set(i, (Double) a + (Double) b);
+    }
+  }
+
+  /** Copy the tuple.  Its sketches are copied too, since a function
+   *  may go on changing a sketch it has written.
+   *  @return        The copy
+   */
+  public Tuple copy ()
+  {
+    Tuple copy = new Tuple();
+    for (Object o : tuple) {
+      if (o instanceof Sketch) {
+        try {
+          DataOutputBuffer out = new DataOutputBuffer();
+          ((Sketch) o).write(out);
+          DataInputBuffer in = new DataInputBuffer();
+          in.reset(out.getData(), out.getLength());
+          o = Sketch.read(in);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      copy.tuple.add(o);
+    }
+    return copy;
   }
 
   /** Return the tuple as a list of parameters.  If the tuple has one
@@ -215,13 +291,19 @@ class Tuple
    */
   public Object toParams(Script script)
   {
+    long start = System.nanoTime();
     Object[] array = tuple.toArray();
+    for (int i = 0; i < array.length; i++) {
+      if (array[i] instanceof Sketch) 
+        array[i] = script.newObject("EggSketch", new Object[]{ array[i] });
+    }
     Object o;
     if (array.length == 0) o = null;
     else if (array.length == 1) o = array[0];  // if only one element
     else {
       o = script.newArray(array);
     }
+    script.metrics.toJavascript += System.nanoTime() - start;
     return o;
   }
 }
@@ -0,0 +1,138 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+// hadoop classes
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.util.ReflectionUtils;
+
+
+/** Class reads the records of a file outside of a map-reduce task as
+ *  key and value Tuples.  Sequence files, such as those written by
+ *  Eggshell jobs, are read as is.  Any other file is read as text,
+ *  each line being split into key and value at its first tab.
+ */
+class TupleReader
+{
+  /* private fields */
+
+  /** The reader of a sequence file */
+  private SequenceFile.Reader seq;
+  /** The reader of a text file */
+  private BufferedReader text;
+  /** The writables of a sequence file whose records are not tuples */
+  private Writable k;
+  private Writable v;
+
+  /* constructors */
+
+  /** Open a file for reading.
+   *  @param fs      The file system of the file
+   *  @param path    The path of the file
+   *  @param conf    The Hadoop configuration
+   *  @return        The new object
+   */
+  public TupleReader (FileSystem fs, Path path, Configuration conf)
+    throws IOException
+  {
+    InputStream in = fs.open(path);
+    byte[] magic = new byte[3];
+    int n = in.read(magic);
+    in.close();
+    if (n == 3 && magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q') {
+      seq = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path));
+      if (seq.getKeyClass() != Tuple.class)
+        k = (Writable) ReflectionUtils.newInstance(seq.getKeyClass(), conf);
+      if (seq.getValueClass() != Tuple.class)
+        v = (Writable) ReflectionUtils.newInstance(seq.getValueClass(), conf);
+    } else {
+      text = new BufferedReader(new InputStreamReader(fs.open(path), "UTF-8"));
+    }
+  }
+
+  /* public static methods */
+
+  /** List the files of a path.  If the path is a directory, its
+   *  files are listed except for hidden ones like _SUCCESS.
+   *  @param fs      The file system of the path
+   *  @param path    The path
+   *  @return        The files
+   */
+  public static Path[] list (FileSystem fs, Path path)
+    throws IOException
+  {
+    ArrayList<Path> files = new ArrayList<Path>();
+    for (FileStatus status : fs.globStatus(path)) {
+      if (!status.isDirectory()) files.add(status.getPath());
+      else {
+        for (FileStatus child : fs.listStatus(status.getPath())) {
+          String name = child.getPath().getName();
+          if (child.isDirectory() || name.startsWith("_") || name.startsWith("."))
+            continue;
+          files.add(child.getPath());
+        }
+      }
+    }
+    return files.toArray(new Path[files.size()]);
+  }
+
+  /* public methods */
+
+  /** Read the next record.
+   *  @param key     The tuple to fill with the key
+   *  @param value   The tuple to fill with the value
+   *  @return        Whether a record was read
+   */
+  public boolean next (Tuple key, Tuple value)
+    throws IOException
+  {
+    if (seq != null) {
+      if (!seq.next(k != null ? k : key, v != null ? v : value)) return false;
+      if (k != null) { key.clear(); key.add(k.toString()); }
+      if (v != null) { value.clear(); value.add(v.toString()); }
+      return true;
+    }
+    String line = text.readLine();
+    if (line == null) return false;
+    int tab = line.indexOf('\t');
+    key.clear();
+    value.clear();
+    key.add(tab < 0 ? line : line.substring(0, tab));
+    if (tab >= 0) value.add(line.substring(tab + 1));
+    return true;
+  }
+
+  /** Close the file.
+   */
+  public void close ()
+    throws IOException
+  {
+    if (seq != null) seq.close();
+    else text.close();
+  }
+}
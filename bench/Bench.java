@@ -0,0 +1,183 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+
+
+/** Class runs the microbenchmarks of the classes on Eggshell's record
+ *  path and compares them against a saved baseline.  Each benchmark is
+ *  first calibrated to the number of operations that fill an
+ *  iteration, then run for a number of warmup iterations so the JIT
+ *  settles, and finally for the measured iterations.  The median time
+ *  per operation is reported, along with the change from the baseline
+ *  when one is given.
+ *
+ *  Usage: java Bench [-filter regex] [-time ms] [-warmup n]
+ *                    [-iterations n] [-save file] [-compare file]
+ */
+public class Bench
+{
+  /* private static fields */
+
+  /** Holds the results of the benchmarks so the JIT cannot drop them */
+  private static volatile long sink;
+
+  /* public static methods */
+
+  /** Run the benchmarks.
+   *  @param args    The command line arguments
+   */
+  public static void main (String[] args)
+    throws Exception
+  {
+    String filter = ".*";
+    long time = 500;
+    int warmup = 3, iterations = 5;
+    String save = null, compare = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (i + 1 == args.length) usage();
+      else if (arg.equals("-filter")) filter = args[++i];
+      else if (arg.equals("-time")) time = Long.parseLong(args[++i]);
+      else if (arg.equals("-warmup")) warmup = Integer.parseInt(args[++i]);
+      else if (arg.equals("-iterations")) iterations = Integer.parseInt(args[++i]);
+      else if (arg.equals("-save")) save = args[++i];
+      else if (arg.equals("-compare")) compare = args[++i];
+      else usage();
+    }
+
+    Properties baseline = new Properties();
+    if (compare != null) load(baseline, compare);
+    Properties results = new Properties();
+
+    ArrayList<Case> cases = new ArrayList<Case>();
+    TupleBench.add(cases);
+    ScriptBench.add(cases);
+
+    System.out.println(String.format("%-32s %12s %12s %9s", "benchmark", "ns/op", "min", "change"));
+    for (Case c : cases) {
+      if (!c.name.matches(filter)) continue;
+      c.setup();
+      int n = calibrate(c, time);
+      for (int i = 0; i < warmup; i++) measure(c, n);
+      double[] nanos = new double[Math.max(iterations, 1)];
+      for (int i = 0; i < nanos.length; i++) nanos[i] = measure(c, n);
+      c.teardown();
+      Arrays.sort(nanos);
+      double median = nanos[nanos.length / 2];
+      results.setProperty(c.name, String.valueOf(median));
+      String change = "";
+      if (baseline.getProperty(c.name) != null) {
+        double base = Double.parseDouble(baseline.getProperty(c.name));
+        change = String.format("%+8.1f%%", 100 * (median - base) / base);
+      }
+      System.out.println(String.format("%-32s %12.1f %12.1f %9s", c.name, median, nanos[0], change));
+    }
+    if (save != null) {
+      FileOutputStream out = new FileOutputStream(save);
+      results.store(out, "Eggshell benchmark results in nanoseconds per operation");
+      out.close();
+    }
+  }
+
+  /* private static methods */
+
+  /** Print the usage and exit.
+   */
+  private static void usage ()
+  {
+    System.err.println("usage: Bench [-filter regex] [-time ms] [-warmup n] " +
+                       "[-iterations n] [-save file] [-compare file]");
+    System.exit(1);
+  }
+
+  /** Load a saved baseline.
+   *  @param baseline  The properties to load into
+   *  @param name      The name of the baseline file
+   */
+  private static void load (Properties baseline, String name)
+    throws IOException
+  {
+    FileInputStream in = new FileInputStream(name);
+    baseline.load(in);
+    in.close();
+  }
+
+  /** Find the number of operations that take about an iteration's
+   *  time, doubling it from one until a run takes a tenth of it.
+   *  @param c       The benchmark
+   *  @param time    The time of an iteration in milliseconds
+   *  @return        The number of operations
+   */
+  private static int calibrate (Case c, long time)
+    throws Exception
+  {
+    long target = time * 1000000L;
+    int n = 1;
+    while (true) {
+      long start = System.nanoTime();
+      sink += c.run(n);
+      long elapsed = System.nanoTime() - start;
+      if (elapsed >= target / 10 || n >= (1 << 30))
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (double) n * target / Math.max(elapsed, 1)));
+      n *= 2;
+    }
+  }
+
+  /** Run a benchmark for a number of operations.
+   *  @param c       The benchmark
+   *  @param n       The number of operations
+   *  @return        The nanoseconds per operation
+   */
+  private static double measure (Case c, int n)
+    throws Exception
+  {
+    long start = System.nanoTime();
+    sink += c.run(n);
+    return (double) (System.nanoTime() - start) / n;
+  }
+
+  /** A benchmark of a single operation */
+  static abstract class Case
+  {
+    /** The name of the benchmark */
+    String name;
+
+    Case (String name)
+    {
+      this.name = name;
+    }
+
+    /** Create the state used by the operation, before it is timed */
+    void setup () throws Exception {}
+
+    /** Release the state used by the operation, after it is timed */
+    void teardown () throws Exception {}
+
+    /** Run the operation a number of times.
+     *  @param n       The number of times
+     *  @return        A value depending on the results, so they are used
+     */
+    abstract long run (int n) throws Exception;
+  }
+}
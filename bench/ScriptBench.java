@@ -0,0 +1,240 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+// hadoop classes
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+
+/** Class holds the benchmarks of calling the map and reduce functions
+ *  of a task, using the functions of the examples.  The map of
+ *  windspeed.js returns an array for each line and the map of
+ *  wordcount.js yields a result for each word, while the reduce
+ *  functions iterate over the values in Javascript or sum them in
+ *  Java.  Setting up a task's interpreter is timed on its own.
+ */
+class ScriptBench
+{
+  /* static fields */
+
+  /** The map function of windspeed.js */
+  static final String WINDSPEED_MAP =
+    "(function (key, value) {\n" +
+    "  var usaf = value.substring(0, 6),\n" +
+    "      wban = value.substring(7, 12),\n" +
+    "      month = value.substring(18, 20),\n" +
+    "      mxspd = value.substring(88, 93);\n" +
+    "  if (mxspd !== \"999.9\")\n" +
+    "    return [ [ Number(month), usaf, wban ], Number(mxspd), 1 ]\n" +
+    "})";
+
+  /** The map function of wordcount.js */
+  static final String WORDCOUNT_MAP =
+    "(function (key, value) {\n" +
+    "  var word = value.split(\" \");\n" +
+    "  for (var i = 0; i < word.length; i += 1) {\n" +
+    "    yield [ word[i], 1 ];\n" +
+    "  }\n" +
+    "})";
+
+  /** A reduce function iterating over its values in Javascript */
+  static final String LOOP_REDUCE =
+    "(function (key, values) {\n" +
+    "  var sum = 0;\n" +
+    "  while (values.hasNext()) sum += values.next();\n" +
+    "  return [ key, sum ];\n" +
+    "})";
+
+  /** The reduce function of wordcount.js */
+  static final String SUM_REDUCE =
+    "(function (key, values) {\n" +
+    "  return [ key, values.sum() ];\n" +
+    "})";
+
+  /** The functions of a job as serialized for its tasks */
+  static final String SERIALIZED =
+    "({map:" + WORDCOUNT_MAP + ",reduce:" + SUM_REDUCE + ",})";
+
+  /** A line of the NCDC data read by windspeed.js */
+  static final String NCDC_LINE =
+    "725030 14732  19730701    70.3 24    57.4 24  1011.8 24  1010.0 24" +
+    "    9.9 24    9.4 24   15.9  999.9    84.0    63.0   0.00G 999.9  000000";
+
+  /** A line of text read by wordcount.js */
+  static final String TEXT_LINE =
+    "the quick brown fox jumps over the lazy dog again and again";
+
+  /* static methods */
+
+  /** Add the benchmarks to the list.
+   *  @param cases   The list of benchmarks
+   */
+  static void add (ArrayList<Bench.Case> cases)
+  {
+    cases.add(new Task("script.callMapReduce.array", WINDSPEED_MAP) {
+      long run (int n) throws Exception
+      {
+        Object[] args = new Object[]{ 0.0, NCDC_LINE };
+        long size = 0;
+        for (int i = 0; i < n; i++) {
+          script.callMapReduce(f, thisObj, args, key, value);
+          size += key.tuple.size() + value.tuple.size();
+        }
+        return size;
+      }
+    });
+
+    cases.add(new Task("script.callMapReduce.generator", WORDCOUNT_MAP) {
+      long run (int n) throws Exception
+      {
+        Object[] args = new Object[]{ 0.0, TEXT_LINE };
+        Counter counter = new Counter();
+        for (int i = 0; i < n; i++)
+          script.dispatchMapReduce(counter, f, thisObj, args, key, value);
+        return counter.written;
+      }
+    });
+
+    cases.add(new Task("iterator.next", LOOP_REDUCE) {
+      long run (int n) throws Exception
+      {
+        return reduce(n);
+      }
+    });
+
+    cases.add(new Task("iterator.sum", SUM_REDUCE) {
+      long run (int n) throws Exception
+      {
+        return reduce(n);
+      }
+    });
+
+    cases.add(new Bench.Case("payload.setup") {
+      long run (int n) throws Exception
+      {
+        long hash = 0;
+        for (int i = 0; i < n; i++) {
+          Script script = new Script();
+          script.setGlobalScope(script.newObject("EggGlobal", null));
+          Scriptable thisObj = script.newObject("EggContext", null);
+          Scriptable obj = (Scriptable) script.evalString(SERIALIZED, "map.js");
+          hash += script.getProperty("map", obj).hashCode() + thisObj.hashCode();
+          script.exit();
+        }
+        return hash;
+      }
+    });
+  }
+
+  /** A benchmark calling a function the way a task does.  The
+   *  interpreter and function are set up before timing starts.
+   */
+  static abstract class Task extends Bench.Case
+  {
+    String source;
+    Script script;
+    Function f;
+    Scriptable thisObj;
+    Tuple key = new Tuple();
+    Tuple value = new Tuple();
+
+    Task (String name, String source)
+    {
+      super(name);
+      this.source = source;
+    }
+
+    void setup () throws Exception
+    {
+      script = new Script();
+      script.setGlobalScope(script.newObject("EggGlobal", null));
+      thisObj = script.newObject("EggContext", null);
+      f = (Function) script.evalString(source, "bench.js");
+    }
+
+    void teardown ()
+    {
+      script.exit();
+    }
+
+    /** Reduce a key with n values of one, so the time of an operation
+     *  is the time taken by a value.
+     *  @param n       The number of values
+     *  @return        The number of values summed
+     */
+    long reduce (int n) throws Exception
+    {
+      Object values = script.newObject("EggIterator", new Object[]{ new Values(n) });
+      Object[] args = new Object[]{ "hadoop", values };
+      script.callMapReduce(f, thisObj, args, key, value);
+      return ((Double) value.tuple.get(0)).longValue();
+    }
+  }
+
+  /** An iterator returning the same value a number of times, as the
+   *  values of a reduce are read into the same tuple.
+   */
+  static class Values implements Iterator<Tuple>
+  {
+    private Tuple value = new Tuple();
+    private int remaining;
+
+    Values (int n)
+    {
+      value.add(1.0);
+      remaining = n;
+    }
+
+    public boolean hasNext ()
+    {
+      return remaining > 0;
+    }
+
+    public Tuple next ()
+    {
+      remaining--;
+      return value;
+    }
+
+    public void remove ()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /** A record writer counting the records written */
+  static class Counter extends RecordWriter<Tuple, Tuple>
+  {
+    long written;
+
+    public void write (Tuple key, Tuple value)
+    {
+      written++;
+    }
+
+    public void close (TaskAttemptContext context)
+    {
+    }
+  }
+}
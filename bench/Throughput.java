@@ -0,0 +1,368 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+// hadoop classes
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.util.ToolRunner;
+
+
+/** Class runs the example scripts end to end on synthetic data, in
+ *  this JVM through Hadoop's local job runner, and compares their
+ *  throughput against a saved baseline.  The data is written to the
+ *  current directory: lines of text for wordcount.js and linecount.js,
+ *  NCDC daily summaries and their station list for windspeed.js, and
+ *  citing and cited patent pairs for invertedcite.js and
+ *  countciting.js.  The same seed always gives the same data.
+ *
+ *  For each script the records read per second of wall time, the map
+ *  output bytes shuffled, the time spent collecting garbage and the
+ *  peak heap used are reported.  A script whose throughput falls by
+ *  more than the tolerance from the baseline is a regression, and the
+ *  runner exits with a status of 1.
+ *
+ *  Usage: java Throughput [-examples dir] [-records n] [-tolerance percent]
+ *                         [-save file] [-compare file] [-D property=value]
+ */
+public class Throughput
+{
+  /* private static fields */
+
+  /** The example scripts and the data file each reads */
+  private static final String[][] EXAMPLES = {
+    { "wordcount", "text.txt" },
+    { "linecount", "text.txt" },
+    { "windspeed", "ncdc.txt" },
+    { "invertedcite", "cite.txt" },
+    { "countciting", "cite.txt" },
+  };
+
+  /** The seed of the synthetic data */
+  private static final long SEED = 20130101L;
+  /** The number of records in each data file */
+  private static int generated;
+
+  /* public static methods */
+
+  /** Generate the data and run the examples.
+   *  @param args    The command line arguments
+   */
+  public static void main (String[] args)
+    throws Exception
+  {
+    String examples = "examples";
+    int records = 100000;
+    double tolerance = 10;
+    String save = null, compare = null;
+    boolean local = false;
+    ArrayList<String> options = new ArrayList<String>();
+    options.add("-fs");
+    options.add("file:///");
+    options.add("-jt");
+    options.add("local");
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (i + 1 == args.length) usage();
+      else if (arg.equals("-examples")) examples = args[++i];
+      else if (arg.equals("-records")) records = Integer.parseInt(args[++i]);
+      else if (arg.equals("-tolerance")) tolerance = Double.parseDouble(args[++i]);
+      else if (arg.equals("-save")) save = args[++i];
+      else if (arg.equals("-compare")) compare = args[++i];
+      else if (arg.equals("-D")) {
+        String option = args[++i];
+        if (option.startsWith(Eggshell.LOCAL_THREADS + "="))
+          local = Integer.parseInt(option.substring(option.indexOf('=') + 1)) > 0;
+        options.add(arg);
+        options.add(option);
+      }
+      else usage();
+    }
+
+    Properties baseline = new Properties();
+    if (compare != null) load(baseline, compare);
+    Properties results = new Properties();
+    results.setProperty("records", String.valueOf(records));
+
+    generate(records);
+
+    boolean regressed = false;
+    ArrayList<String> report = new ArrayList<String>();
+    report.add(String.format("%-14s %10s %9s %12s %12s %8s %10s %9s",
+      "example", "records", "seconds", "records/s", "shuffle", "gc ms", "peak heap", "change"));
+    for (String[] example : EXAMPLES) {
+      String name = example[0];
+      String output = "out." + name;
+      if (local && name.equals("linecount")) {
+        report.add(String.format("%-14s skipped, the local engine cannot submit jobs", name));
+        continue;
+      }
+      FileUtil.fullyDelete(new File(output));
+      ArrayList<String> argv = new ArrayList<String>(options);
+      argv.add(new File(examples, name + ".js").getPath());
+      argv.add(example[1]);
+      if (!name.equals("linecount")) argv.add(output);
+
+      Result r = run(argv.toArray(new String[argv.size()]));
+      FileUtil.fullyDelete(new File(output));
+      if (r == null) {
+        report.add(String.format("%-14s failed", name));
+        regressed = true;
+        continue;
+      }
+      double rate = r.records / r.seconds;
+      results.setProperty(name + ".records", String.valueOf(r.records));
+      results.setProperty(name + ".seconds", String.valueOf(r.seconds));
+      results.setProperty(name + ".records_per_second", String.valueOf(rate));
+      results.setProperty(name + ".shuffle_bytes", String.valueOf(r.shuffle));
+      results.setProperty(name + ".gc_millis", String.valueOf(r.gc));
+      results.setProperty(name + ".peak_heap_bytes", String.valueOf(r.heap));
+
+      String change = "";
+      String base = baseline.getProperty(name + ".records_per_second");
+      if (base != null) {
+        double b = Double.parseDouble(base);
+        change = String.format("%+8.1f%%", 100 * (rate - b) / b);
+        if (rate < b * (1 - tolerance / 100)) {
+          change += " REGRESSION";
+          regressed = true;
+        }
+      }
+      report.add(String.format("%-14s %10d %9.2f %12.0f %12d %8d %10d %9s",
+        name, r.records, r.seconds, rate, r.shuffle, r.gc, r.heap, change));
+    }
+    System.out.println();
+    for (String line : report) System.out.println(line);
+    if (save != null) {
+      FileOutputStream out = new FileOutputStream(save);
+      results.store(out, "Eggshell end to end throughput results");
+      out.close();
+    }
+    System.exit(regressed ? 1 : 0);
+  }
+
+  /* private static methods */
+
+  /** Print the usage and exit.
+   */
+  private static void usage ()
+  {
+    System.err.println("usage: Throughput [-examples dir] [-records n] [-tolerance percent] " +
+                       "[-save file] [-compare file] [-D property=value]");
+    System.exit(1);
+  }
+
+  /** Load a saved baseline.
+   *  @param baseline  The properties to load into
+   *  @param name      The name of the baseline file
+   */
+  private static void load (Properties baseline, String name)
+    throws IOException
+  {
+    FileInputStream in = new FileInputStream(name);
+    baseline.load(in);
+    in.close();
+  }
+
+  /** Run a script and measure it.  The counters are summed over the
+   *  jobs the script ran.  The script fails if it returns an error
+   *  status or its jobs read fewer records than they were given.
+   *  @param argv    The command line of the script
+   *  @return        The measurements, or null if the script failed
+   */
+  private static Result run (String[] argv)
+    throws Exception
+  {
+    System.gc();
+    long gc = gcMillis();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+    }
+    Egg.started.clear();
+    long start = System.nanoTime();
+    int status;
+    try {
+      status = ToolRunner.run(new Eggshell(), argv);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
+
+    Result r = new Result();
+    r.seconds = (System.nanoTime() - start) / 1e9;
+    r.gc = gcMillis() - gc;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) r.heap += pool.getPeakUsage().getUsed();
+    }
+    for (Egg egg : Egg.started) {
+      Counters counters = egg.getCounters();
+      long shuffle = counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue();
+      if (shuffle == 0)
+        shuffle = counters.findCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES).getValue();
+      r.records += counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue();
+      r.shuffle += shuffle;
+    }
+    if (status != 0 || Egg.started.isEmpty() || r.records < generated) return null;
+    return r;
+  }
+
+  /** Get the time spent collecting garbage by this JVM.
+   *  @return        The time in milliseconds
+   */
+  private static long gcMillis ()
+  {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      millis += Math.max(gc.getCollectionTime(), 0);
+    return millis;
+  }
+
+  /** Write the data files of the examples to the current directory.
+   *  Words and cited patents are drawn so a few are common and most
+   *  are rare, as in real text and citations.
+   *  @param records   The number of records in each file
+   */
+  private static void generate (int records)
+    throws IOException
+  {
+    Random random = new Random(SEED);
+    generated = records;
+
+    /* text: lines of eight to twelve words */
+    String[] syllables = { "ka", "lo", "mi", "ne", "ru", "ta", "shi", "po", "de", "an", "el", "or" };
+    String[] words = new String[5000];
+    for (int i = 0; i < words.length; i++) {
+      StringBuilder word = new StringBuilder();
+      for (int n = i; ; n /= syllables.length) {
+        word.append(syllables[n % syllables.length]);
+        if (n < syllables.length) break;
+      }
+      words[i] = word.toString();
+    }
+    BufferedWriter out = writer("text.txt");
+    for (int i = 0; i < records; i++) {
+      int n = 8 + random.nextInt(5);
+      for (int j = 0; j < n; j++) {
+        if (j > 0) out.write(' ');
+        out.write(words[skewed(random, words.length)]);
+      }
+      out.write('\n');
+    }
+    out.close();
+
+    /* ncdc: the station list and daily summaries in fixed width columns */
+    int stations = 500;
+    out = writer("ish-history.csv");
+    out.write("\"USAF\",\"WBAN\",\"STATION NAME\",\"CTRY\",\"FIPS\",\"STATE\"\n");
+    for (int s = 0; s < stations; s++) {
+      out.write(String.format("\"%06d\",\"99999\",\"STATION %d\",\"US\",\"US\",\"%s\"\n",
+        usaf(s), s, (s % 3 == 0) ? "" : "NY"));
+    }
+    out.close();
+    out = writer("ncdc.txt");
+    char[] line = new char[138];
+    for (int i = 0; i < records; i++) {
+      Arrays.fill(line, ' ');
+      int s = random.nextInt(stations);
+      int month = 1 + random.nextInt(12), day = 1 + random.nextInt(28);
+      double mxspd = random.nextInt(20) == 0 ? 999.9 : random.nextInt(600) / 10.0;
+      put(line, 0, String.format("%06d", usaf(s)));
+      put(line, 7, "99999");
+      put(line, 14, String.format("2012%02d%02d", month, day));
+      put(line, 24, String.format("%6.1f 24", random.nextInt(900) / 10.0));
+      put(line, 88, String.format("%5.1f", mxspd));
+      out.write(line);
+      out.write('\n');
+    }
+    out.close();
+
+    /* cite: the citing patent and the patent it cites */
+    out = writer("cite.txt");
+    int cited = Math.max(records / 4, 1);
+    for (int i = 0; i < records; i++) {
+      int citing = 3000000 + i / 4;
+      out.write(citing + "," + (1000000 + skewed(random, cited)) + "\n");
+    }
+    out.close();
+  }
+
+  /** Draw a number below a limit, small numbers being the most likely.
+   *  @param random  The random number generator
+   *  @param limit   The limit
+   *  @return        The number
+   */
+  private static int skewed (Random random, int limit)
+  {
+    double r = random.nextDouble();
+    return (int) (limit * r * r * r);
+  }
+
+  /** Get the USAF identifier of a synthetic station.
+   *  @param s       The number of the station
+   *  @return        The identifier
+   */
+  private static int usaf (int s)
+  {
+    return 10000 + s * 37;
+  }
+
+  /** Copy a field into a fixed width line.
+   *  @param line    The line
+   *  @param column  The column the field starts at
+   *  @param field   The field
+   */
+  private static void put (char[] line, int column, String field)
+  {
+    field.getChars(0, field.length(), line, column);
+  }
+
+  /** Open a data file for writing.
+   *  @param name    The name of the file
+   *  @return        The writer
+   */
+  private static BufferedWriter writer (String name)
+    throws IOException
+  {
+    return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(name), "UTF-8"));
+  }
+
+  /** The measurements of a script */
+  static class Result
+  {
+    long records;
+    double seconds;
+    long shuffle;
+    long gc;
+    long heap;
+  }
+}
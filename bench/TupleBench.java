@@ -0,0 +1,144 @@
+/*
+This file is part of Eggshell.
+Copyright 2013 George Magiros
+
+Eggshell is free software: you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the
+Free Software Foundation, either version 3 of the License, or (at
+your option) any later version.
+
+Eggshell is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public
+License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Eggshell.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+
+// hadoop classes
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+
+/** Class holds the benchmarks of the Tuple class.  Each is run on the
+ *  shapes of tuple the examples produce: the word and count of
+ *  wordcount.js, the month, station and wind speed of windspeed.js,
+ *  and the patent numbers of invertedcite.js.
+ */
+class TupleBench
+{
+  /* static methods */
+
+  /** Add the benchmarks to the list.
+   *  @param cases   The list of benchmarks
+   */
+  static void add (ArrayList<Bench.Case> cases)
+  {
+    for (final String shape : new String[]{ "word", "wind", "cite" }) {
+      final Tuple tuple = tuple(shape, 0);
+      final Tuple other = tuple(shape, 1);
+
+      cases.add(new Bench.Case("tuple.write." + shape) {
+        DataOutputBuffer out = new DataOutputBuffer();
+        long run (int n) throws Exception
+        {
+          long len = 0;
+          for (int i = 0; i < n; i++) {
+            out.reset();
+            tuple.write(out);
+            len += out.getLength();
+          }
+          return len;
+        }
+      });
+
+      cases.add(new Bench.Case("tuple.readFields." + shape) {
+        DataInputBuffer in = new DataInputBuffer();
+        byte[] data;
+        int length;
+        void setup () throws Exception
+        {
+          DataOutputBuffer out = new DataOutputBuffer();
+          tuple.write(out);
+          data = out.getData();
+          length = out.getLength();
+        }
+        long run (int n) throws Exception
+        {
+          Tuple t = new Tuple();
+          long size = 0;
+          for (int i = 0; i < n; i++) {
+            in.reset(data, length);
+            t.readFields(in);
+            size += t.tuple.size();
+          }
+          return size;
+        }
+      });
+
+      cases.add(new Bench.Case("tuple.compareTo." + shape) {
+        long run (int n)
+        {
+          long cmp = 0;
+          for (int i = 0; i < n; i++) cmp += tuple.compareTo(other);
+          return cmp;
+        }
+      });
+
+      cases.add(new Bench.Case("tuple.toString." + shape) {
+        long run (int n)
+        {
+          long len = 0;
+          for (int i = 0; i < n; i++) len += tuple.toString().length();
+          return len;
+        }
+      });
+
+      cases.add(new Bench.Case("tuple.toParams." + shape) {
+        Script script;
+        void setup () throws Exception
+        {
+          script = new Script();
+        }
+        void teardown ()
+        {
+          script.exit();
+        }
+        long run (int n)
+        {
+          long hash = 0;
+          for (int i = 0; i < n; i++) hash += tuple.toParams(script).hashCode();
+          return hash;
+        }
+      });
+    }
+  }
+
+  /** Create a tuple of the given shape.  Tuples of the same shape and
+   *  different seeds differ in their last element only, so comparing
+   *  them looks at every element.
+   *  @param shape   The shape
+   *  @param seed    The seed
+   *  @return        The tuple
+   */
+  static Tuple tuple (String shape, int seed)
+  {
+    Tuple tuple = new Tuple();
+    if (shape.equals("word")) {
+      tuple.add("hadoop");
+      tuple.add(1.0 + seed);
+    } else if (shape.equals("wind")) {
+      tuple.add(7.0);
+      tuple.add("725030");
+      tuple.add("14732");
+      tuple.add(21.4 + seed);
+    } else {
+      tuple.add("3858241");
+      tuple.add("95649" + seed);
+    }
+    return tuple;
+  }
+}
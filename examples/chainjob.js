@@ -18,21 +18,15 @@ function map (key, value) {
     return [ [ Number(month), usaf, wban ], Number(mxspd), 1 ]
 }
 
-function setup () {
-  var line, field, value, state;
+function station (line) {
+  var field, value, state;
   function trim (s) { return s.substring(1,s.length-1); }
-  station = {};  // saved to the global scope
-  open("ish-history.csv");
-  while ((line = readln()) !== null) {
-    field = line.split(",");
-    key = trim(field[0]) + trim(field[1]);
-    value = trim(field[2]);
-    state = trim(field[5]);
-    if (state !== '') value += " - " + state;
-    value += " [" + trim(field[3]) + "]";
-    station[key] = value;
-  }
-  close();
+  field = line.split(",");
+  value = trim(field[2]);
+  state = trim(field[5]);
+  if (state !== '') value += " - " + state;
+  value += " [" + trim(field[3]) + "]";
+  return [ trim(field[0]) + trim(field[1]), value ];
 }
 
 function reduce (key, values) {
@@ -46,7 +40,7 @@ function reduce (key, values) {
   k = [ key[0] ];
   k = k.concat(list.splice(0,10));
   id = key[1] + key[2];
-  return [ k, sum, station[id] ];
+  return [ k, sum, this.lookup("station", id) ];
 }
 
 function eggshell (input, output) {
@@ -57,10 +51,8 @@ function eggshell (input, output) {
   .output("temp")
   .name(job.getName() + " (1/2)")
   .map(map)
-  .reduce({ 
-         setup:setup,
-         reduce:reduce, 
-       })
+  .lookupTable("station", "ish-history.csv", station)
+  .reduce(reduce)
   .sequenceFileOutputFormat()
   .waitForCompletion(false);
 
@@ -19,12 +19,7 @@ function eggshell (input, output) {
     })
   .reduce(
     function (key, values) {
-      var count = 0;
-      while (values.hasNext()) {
-        count += 1;
-        values.next();
-      }
-      return [ key, count ];
+      return [ key, values.count() ];
     })
   .waitForCompletion(true);
 }
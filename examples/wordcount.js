@@ -17,21 +17,9 @@ function eggshell (input, output) {
         yield [ word[i], 1 ];
       }
     })
-  .combine(
-    function (key, values) {
-      var sum = 0;
-      while (values.hasNext()) {
-        sum = sum + values.next();
-      }
-      return [ key, sum ];
-    })
   .reduce(
     function (key, values) {
-      var sum = 0;
-      while (values.hasNext()) {
-        sum = sum + values.next();
-      }
-      return [ key, sum ];
-    })
+      return [ key, values.sum() ];
+    }, true)
   .waitForCompletion(true);
 }